@@ -1,27 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 
 /**
  * Defines a Quagent capable of finding and navigating to tofu in undisclosed
  *	locations, inside a room of unknown layout
  */
-class AStar extends Quagent{
+class AStar extends QuagentClient{
     
     /**
      * Size of each cell in the graph
      */
     final static int CELL_SIZE = 16;
     
+    /**
+     * Goals at least this far away are searched for from both ends
+     */
+    final static int BIDIRECTIONAL_DISTANCE = 24*CELL_SIZE;
+    
+    /**
+     * Time in milliseconds a single plan may take before the best path so
+     *	far is used, and time spent improving it after each batch of events.
+     *	Both are far below the watchdog timeout.
+     */
+    final static int PLAN_BUDGET = 100;
+    final static int IDLE_BUDGET = 20;
+    
+    /**
+     * Number of budgets a single anytime plan may take to find a first
+     *	path before an exact search settles it
+     */
+    final static int MAX_BUDGETS = 10;
+    
+    /**
+     * Number of rays cast on each scan of the room
+     */
+    final static int RAYS = 16;
+    
+    /**
+     * Distance within which items are looked for
+     */
+    final static float SENSE_RADIUS = 10000;
+    
+    /**
+     * Scans with at least this many rays are rasterized in parallel
+     */
+    final static int PARALLEL_RAYS = 64;
+    
+    /**
+     * Time in milliseconds without a reply before the watchdog fires
+     */
+    final static int WATCHDOG_TIMEOUT = 10*1000;
+    
+    /**
+     * Time in milliseconds between snapshots of the map
+     */
+    final static int SNAPSHOT_INTERVAL = 5*1000;
+    
 	/**
-	 * Watchdog timer in case the Quagent stops responding.
+	 * Watchdog in case the Quagent stops responding.
 	 */
-	private Timer watchdog;
+	private Watchdog watchdog;
 	
     /**
-     * Graph to hold a map of the room
+     * Graph to hold a map of the room, shared by every agent and only
+     *	touched on their planner threads
      */
     private static Graph room;
     
+    /**
+     * Guards the shared map. Changes hold the write lock and plans hold the
+     *	read lock, so the agents plan in parallel and a plan never sees a
+     *	change half done. The lock is fair so a steady stream of plans does
+     *	not hold changes back.
+     */
+    private static final ReadWriteLock mapLock = new ReentrantReadWriteLock(true);
+    
+    /**
+     * Level being mapped and the fresh file its map is saved to in this run,
+     *	both null to not save it, and the time on the monotonic clock of the last snapshot
+     *	taken by any agent
+     */
+    private static String level;
+    private static File snapshot;
+    private static final AtomicLong last_snapshot = new AtomicLong(System.nanoTime());
+    
+    /**
+     * Workspace reused by every path search
+     */
+    private PathSearch search = new PathSearch();
+    
+    /**
+     * Workspace reused by every jump point search
+     */
+    private JumpPointSearch jumpSearch = new JumpPointSearch();
+    
+    /**
+     * Incremental planner kept across events, created on first use
+     */
+    private DStarLite replanner;
+    
+    /**
+     * Recently planned paths, reused while the agent stays on one of them
+     */
+    private PathCache paths;
+    
+    /**
+     * Workspace reused by every any angle search
+     */
+    private ThetaStar thetaSearch = new ThetaStar();
+    
+    /**
+     * Hierarchical planner kept across events, created on first use
+     */
+    private HierarchicalPlanner hierarchy;
+    
+    /**
+     * Anytime planner kept across events, created on first use
+     */
+    private AnytimeSearch anytime;
+    
+    /**
+     * Thread that works on the map for this agent. Every change to the map
+     *	and every plan is handed to it in the order the events arrived, so a
+     *	plan sees the map at least as the events before it left it, while
+     *	the event loop keeps reading and parsing events.
+     */
+    private ExecutorService plannerThread =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "planner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    
+    /**
+     * Scratch buffer a scan is rasterized into before it is committed
+     */
+    private CellBuffer scan = new CellBuffer(1024, true);
+    
+    /**
+     * Path being planned on the planner thread, null if there is none.
+     *	Once it is picked up the agent heads along it if follow is true. If
+     *	optional is true, a failed plan leaves the current path alone.
+     */
+    private Future<Stack<Cell>> planned;
+    private boolean follow;
+    private boolean optional;
+    
+    /**
+     * Better path being looked for on the planner thread, and the cell the
+     *	agent was walking to when it was asked for
+     */
+    private Future<Stack<Cell>> improved;
+    private Cell improved_from;
+    
+    /**
+     * Answers still to come of the last sense cycle, in the order they
+     *	were asked for
+     */
+    private ArrayDeque<Future<String>> sensing = new ArrayDeque<Future<String>>();
+    
+    /**
+     * Reads the replies of the server into reusable buffers
+     */
+    private EventParser parser = new EventParser();
+    
     /**
      * Array list of explored cells
      */
@@ -53,7 +202,7 @@ class AStar extends Quagent{
     private Cell location;
     
 	/**
-     * Current location of the quagent
+     * Where the quagent is headed, only touched on the planner thread
      */
     private Cell target;
 	
@@ -84,128 +233,424 @@ class AStar extends Quagent{
      */
     private State state = State.START;
     
+    /**
+     * False once this agent has given up, which ends its event loop but
+     *	leaves the other agents running
+     */
+    private boolean running = true;
+    
+    /**
+     * Enumeration to describe the search used to plan paths. THETA_STAR
+     *	plans straight segments directly and uses A_STAR wherever a grid
+     *	path is needed. ANYTIME plans within PLAN_BUDGET and improves the
+     *	path between events.
+     */
+    enum Planner{
+        A_STAR, JUMP_POINT, D_STAR_LITE, THETA_STAR, HIERARCHICAL, ANYTIME
+    }
+    
+    /**
+     * Search used to plan paths by every agent, chosen on the command line
+     */
+    private static Planner planner = Planner.ANYTIME;
+    
 	/**
-     * The thread to wake up the quagent if it becomes unresponsive
-     */
-	private class WatchdogTask extends TimerTask {
-        @Override
-        public void run() {
-			try{
-				AStar.this.where();
-				kickDog();
+     * Ways to wake up the quagent if it becomes unresponsive, tried in
+     *	order. First ask where it is, which the handlers of every state carry
+     *	on from, then ask for a scan.
+     */
+	private Watchdog.Action[] recoveries(){
+		return new Watchdog.Action[]{
+			new Watchdog.Action() {
+				public void recover() throws Exception {
+					AStar.this.where();
+				}
+			},
+			new Watchdog.Action() {
+				public void recover() throws Exception {
+					AStar.this.rays(RAYS);
+				}
 			}
-			catch (QDiedException er) { // the quagent died -- catch that exception
-                System.out.println("bot died!");
-            }
-            catch (Exception er) { // something else went wrong???
-                System.out.println("system failure: "+er);
-                System.exit(0);
-            }
-        }
-    }
+		};
+	}
 	
     /**
      * Quagent is awake, don't revive
      */
 	private void kickDog(){
-		watchdog.cancel();
-		watchdog = new Timer();
-		watchdog.schedule(new WatchdogTask(), 10*1000);
+		watchdog.kick();
 	}
 	
     /**
-     * Actual implementation of the A* algorithm
+     * Actual implementation of the A* algorithm. Goals far away are
+     *	searched for from both ends.
      */
     private Stack<Cell> a_star(Cell start, Cell goal){
-        // The set of nodes already evaluated.
-        ArrayList<Cell> closedset = new ArrayList<Cell>();
-        ArrayList<Cell> openset = new ArrayList<Cell>();
-        
-		if(start.equals(goal)){
-			Stack<Cell> output = new Stack<Cell>();
-			output.push(start);
-			return output;
-		}
-		
-        // The set of tentative nodes to be evaluated,
-        //	initially containing the start node
-        openset.add(start);
-        
-        // Nodes mapped to their parents
-        HashMap<Cell, Cell> cameFrom = new HashMap<Cell, Cell>();
-        
-        // Table of g (distance from start) and f scores
-        HashMap<Cell, Integer> g_score = new HashMap<Cell, Integer>();
-        HashMap<Cell, Integer> f_score = new HashMap<Cell, Integer>();
-        
-        // The initial g score is zero
-        g_score.put(start, new Integer(0));    // Cost from start along best known path.
-        f_score.put(start, new Integer(g_score.get(start) + (int)start.distance(goal)));
-        
-        // Iterate until we are certain that no path was found
-        while (!openset.isEmpty()){
-            
-            // Get the cell witht eh best f score in the open list
-            Cell current = openset.get(0);
-            Integer current_f = f_score.get(current);
-            for (Cell p : openset){
-                if(f_score.get(p) < current_f){
-                    current_f = f_score.get(p);
-                    current = p;
+        return a_star(start, goal, start.heuristic(goal) >= BIDIRECTIONAL_DISTANCE);
+    }
+
+    /**
+     * Search from start to goal, from both ends if bidirectional is true
+     */
+    private Stack<Cell> a_star(Cell start, Cell goal, boolean bidirectional){
+        return search.a_star(room, start, goal, bidirectional);
+    }
+    
+    /**
+     * Plan a path from start to goal, reusing a cached path if the start
+     *	is still on one towards the same goal. Anytime paths are only cached
+     *	once proven optimal, so a cached path is never worse than the one a
+     *	fresh search would settle on.
+     */
+    private Stack<Cell> plan(Cell start, Cell goal){
+        if (paths == null)
+            paths = new PathCache(room);
+        Stack<Cell> path = paths.get(start, goal);
+        if (path == null) {
+            path = search(start, goal);
+            if (planner != Planner.ANYTIME || anytime.bound() <= 1.0)
+                paths.put(path);
+        }
+        return path;
+    }
+    
+    /**
+     * Search for a path from start to goal with the selected planner
+     */
+    private Stack<Cell> search(Cell start, Cell goal){
+        switch (planner) {
+            case JUMP_POINT:
+                return jumpSearch.search(room, start, goal);
+            case D_STAR_LITE:
+                if (replanner == null)
+                    replanner = new DStarLite(room);
+                return replanner.plan(start, goal);
+            case HIERARCHICAL:
+                if (hierarchy == null)
+                    hierarchy = new HierarchicalPlanner(room);
+                return hierarchy.plan(start, goal);
+            case ANYTIME:
+                return anytime(start, goal);
+            default:
+                return a_star(start, goal);
+        }
+    }
+    
+    /**
+     * Plan with the anytime planner, a budget at a time and at most
+     *	MAX_BUDGETS of them. If no path has been found by then, a single
+     *	A* search settles whether there is one, so the planner thread never
+     *	holds the map for long on a goal it cannot reach.
+     */
+    private Stack<Cell> anytime(Cell start, Cell goal){
+        if (anytime == null)
+            anytime = new AnytimeSearch(room);
+        Stack<Cell> path = anytime.plan(start, goal, PLAN_BUDGET);
+        for (int i = 1; path == null && anytime.searching() && i < MAX_BUDGETS; i++){
+            path = anytime.plan(start, goal, PLAN_BUDGET);
+        }
+        if (path == null && anytime.searching())
+            path = a_star(start, goal);
+        return path;
+    }
+    
+    /**
+     * Spend a little time improving the anytime plan, and return the better
+     *	path from the passed in cell on, or null if there is none
+     */
+    private Stack<Cell> improvePlan(Cell from){
+        // A path served from the cache may lead somewhere other than the
+        //  last anytime search
+        if (anytime == null || target == null || anytime.goal() == null ||
+            !anytime.goal().equals(target) || !anytime.improve(IDLE_BUDGET))
+            return null;
+        Stack<Cell> better = anytime.pathFrom(from);
+        if (better == null)
+            return null;
+        better = shortcut(better, better.get(0));
+        better.pop();
+        return better.isEmpty() ? null : better;
+    }
+    
+    /**
+     * Ask for the position, the items around and a scan in a single write.
+     *	The answers are handled in that order once they have all arrived.
+     */
+    private void sense() throws Exception {
+        sensing.add(ask("do getwhere"));
+        sensing.add(ask("ask radius "+SENSE_RADIUS));
+        sensing.add(ask("ask rays "+RAYS));
+        flush();
+    }
+    
+    /**
+     * Handle the answers of the sense cycle that have arrived, in the order
+     *	they were asked for
+     */
+    private void pickUpReplies() throws Exception {
+        while (!sensing.isEmpty() && sensing.peek().isDone())
+            handleEvent(sensing.poll().get());
+    }
+    
+    /**
+     * Take the position and orientation from the last getwhere reply
+     */
+    private void readWhere(){
+        double[] where = parser.where;
+        x = where[0];
+        y = where[1];
+        z = where[2];
+        roll = where[3];
+        pitch = where[4];
+        yaw = where[5];
+        velocity = where[6];
+    }
+    
+    /**
+     * Hand the hits of the last rays reply to the planner thread. They are
+     *	copied, since the parser reuses its buffers for the next reply.
+     */
+    private void ingestRays(){
+        int count = parser.num_rays;
+        int[] hit_x = new int[count];
+        int[] hit_y = new int[count];
+        for (int i = 0; i<count; i++){
+            //Adjust the ray location from relative to absolute coordinates
+            hit_x[i] = fitToGrid(parser.ray_x[i] + x);
+            hit_y[i] = fitToGrid(parser.ray_y[i] + y);
+        }
+        ingest(location, hit_x, hit_y, Arrays.copyOf(parser.ray_hit, count), count);
+    }
+    
+    /**
+     * Look at the map on the planner thread without changing it, such as to
+     *	print it, holding only the read lock so other agents keep planning
+     */
+    private void view(final Runnable look){
+        plannerThread.execute(new Runnable() {
+            public void run() {
+                mapLock.readLock().lock();
+                try {
+                    look.run();
+                }
+                finally {
+                    mapLock.readLock().unlock();
                 }
             }
-            
-            // If the current node is the goal, we are done
-            if (current.equals(goal)){
-                return reconstruct_path(cameFrom, goal);
+        });
+    }
+    
+    /**
+     * Change the map on the planner thread
+     */
+    private void update(final Runnable change){
+        plannerThread.execute(new Runnable() {
+            public void run() {
+                mapLock.writeLock().lock();
+                try {
+                    change.run();
+                }
+                finally {
+                    mapLock.writeLock().unlock();
+                }
             }
-            
-            // Otherwise, take the cell off the open list and
-            //	add it to the closed list
-            openset.remove(current);
-            closedset.add(current);
-            
-            if(room.getNeighbors(current) == null){
-				return null;
-			}
-            // Go through each neighbor of the cell
-            for (Cell neighbor : room.getNeighbors(current)){
-                
-                // Skip cells already in the closed list
-                if (closedset.contains(neighbor))
-                    continue;
-                
-                if (neighbor.isWall())
-                    continue;
-                
-                // Calculate the g score
-				int wall_modifier = room.neighborIsWall(neighbor) ? 50000 : 0;
-                //int wall_modifier = (neighbor.isWall() ? 10000000 : 0);
-				 
-				//int exploration_modifier = room.isUnexplored(neighbor) ? 4 : 1;
-                Integer tentative_g_score = new Integer((g_score.get(current) + (int)current.distance(neighbor) + wall_modifier));
-                // If going through the current node is better than going
-                //	through the neighbor's current parent, change its parent
-                if (!openset.contains(neighbor) || tentative_g_score < g_score.get(neighbor)){
-                    
-                    cameFrom.put(neighbor, current);
-                    g_score.put(neighbor, tentative_g_score);
-                    f_score.put(neighbor, new Integer(g_score.get(neighbor) + (int)neighbor.heuristic(goal)));
-                    
-                    // Add the neighbor to the open list if it isn't already
-                    if (!openset.contains(neighbor))
-                        openset.add(neighbor);
-                    
+        });
+    }
+    
+    /**
+     * Plan on the planner thread while holding the map steady
+     */
+    private Future<Stack<Cell>> submit(final Callable<Stack<Cell>> plan){
+        return plannerThread.submit(new Callable<Stack<Cell>>() {
+            public Stack<Cell> call() throws Exception {
+                mapLock.readLock().lock();
+                try {
+                    return plan.call();
+                }
+                finally {
+                    mapLock.readLock().unlock();
                 }
             }
+        });
+    }
+    
+    /**
+     * Add a scan to the map on the planner thread, rasterizing large scans
+     *	in parallel. The rays are rasterized before the write lock is taken,
+     *	so it is only held to commit the cells.
+     */
+    private void ingest(final Cell origin, final int[] hit_x, final int[] hit_y,
+                        final Cell.Contents[] hits, final int count){
+        plannerThread.execute(new Runnable() {
+            public void run() {
+                CellBuffer cells;
+                if(count >= PARALLEL_RAYS){
+                    cells = Graph.rasterizeScan(origin, hit_x, hit_y, hits, count,
+                                                ForkJoinPool.commonPool());
+                }
+                else{
+                    scan.clear();
+                    Graph.rasterizeScan(origin, hit_x, hit_y, hits, count, scan);
+                    cells = scan;
+                }
+                mapLock.writeLock().lock();
+                try {
+                    room.commitScan(cells);
+                }
+                finally {
+                    mapLock.writeLock().unlock();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Plan on the planner thread, replacing any plan not yet picked up. The
+     *	agent heads along the new path if either asked it to.
+     */
+    private void submitPlan(Callable<Stack<Cell>> plan, boolean follow,
+                            boolean optional){
+        boolean waiting = planned != null && this.follow;
+        dropPlan();
+        this.planned = submit(plan);
+        this.follow = follow || waiting;
+        this.optional = optional;
+    }
+    
+    /**
+     * Write a snapshot of the map on the planner thread, at most once every
+     *	SNAPSHOT_INTERVAL across all agents unless forced. Returns the
+     *	pending write, or null if it is not yet time or no level was named.
+     */
+    private Future<?> saveMap(boolean force){
+        if (snapshot == null)
+            return null;
+        long now = System.nanoTime();
+        long last = last_snapshot.get();
+        if (!force && (now - last < SNAPSHOT_INTERVAL*1000000L ||
+                       !last_snapshot.compareAndSet(last, now)))
+            return null;
+        return plannerThread.submit(new Runnable() {
+            public void run() {
+                // Only encoding needs the map held steady, not the write
+                try {
+                    ByteBuffer saved;
+                    mapLock.readLock().lock();
+                    try {
+                        saved = MapSnapshot.encode(room, CELL_SIZE, level);
+                    }
+                    finally {
+                        mapLock.readLock().unlock();
+                    }
+                    MapSnapshot.write(saved, snapshot);
+                    MapSnapshot.prune(snapshot, level);
+                }
+                catch (IOException e) {
+                    System.out.println("Could not save "+snapshot+": "+e.getMessage());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Forget the plan not yet picked up, if there is one
+     */
+    private void dropPlan(){
+        if (planned != null)
+            planned.cancel(false);
+        planned = null;
+        follow = false;
+    }
+    
+    /**
+     * Look for a new place to explore and head there once the path to it
+     *	is planned
+     */
+    private void explore(){
+        followingTofu = false;
+        final Cell here = location;
+        submitPlan(new Callable<Stack<Cell>>() {
+            public Stack<Cell> call() {
+                if (room.numUnexplored() > room.V()/2)
+                    target = room.getIsolatedUnexplored(here, 200);
+                else
+                    target = room.getIsolatedUnseen(here, 100);
+                return indiscretize(here, target);
+            }
+        }, true, false);
+    }
+    
+    /**
+     * Pop off the next location of the path and turn towards it
+     */
+    private void followPath() throws Exception {
+        //If there is still no path, one doesn't exist. Self destruct
+        if(path == null || path.isEmpty()){
+            System.out.println("No path");
+            running = false;
+            return;
+        }
+        final Stack<Cell> shown = new Stack<Cell>();
+        shown.addAll(path);
+        view(new Runnable() {
+            public void run() {
+                room.printMap(shown);
+            }
+        });
+        next = path.pop();
+        double x2 = next.x - x;
+        double y2 = next.y - y;
+        double angle = Math.toDegrees(Math.atan2(y2, x2)) - this.pitch;
+        this.turn((int)angle);
+    }
+    
+    /**
+     * Pick up the plans the planner thread has finished. A better path from
+     *	the anytime planner is only taken if the agent is still walking to
+     *	the cell it starts after and no new path is on its way. While the
+     *	agent is following a path and the planner thread has nothing else
+     *	to do, it is asked for a better one.
+     */
+    private void pickUpPlans() throws Exception {
+        if (planned != null && planned.isDone()) {
+            Stack<Cell> result = planned.get();
+            boolean go = follow;
+            planned = null;
+            follow = false;
+            if (result != null || !optional)
+                path = result;
+            else
+                followingTofu = false;
+            if (go) {
+                if (optional && (path == null || path.isEmpty()))
+                    explore();
+                else
+                    followPath();
+            }
+        }
+        if (improved != null && improved.isDone()) {
+            Stack<Cell> better = improved.get();
+            improved = null;
+            if (better != null && planned == null && path != null &&
+                next == improved_from)
+                path = better;
+        }
+        if (planner == Planner.ANYTIME && planned == null && improved == null &&
+            state == State.SEARCHING && path != null && !path.isEmpty()) {
+            final Cell from = next;
+            improved_from = from;
+            improved = submit(new Callable<Stack<Cell>>() {
+                public Stack<Cell> call() {
+                    return improvePlan(from);
+                }
+            });
         }
-        return null;
     }
     
     // Produces path identical to the A* algorithm, but without cells between
     // points on a horizontal or vertical line
     private Stack<Cell> smoothStraightaways(Cell start, Cell goal) {
-        Stack<Cell> path = a_star(start, goal);
+        Stack<Cell> path = plan(start, goal);
         if (path == null || path.size() < 5)
             return path;
         Stack<Cell> smoothed = new Stack<Cell>();
@@ -229,9 +674,17 @@ class AStar extends Quagent{
         return path;
     }
     
-    // Produces an optimal path through a continuous space
+    // Produces an optimal path through a continuous space. Theta* paths skip
+    // the cells between their corners, while the path cache only watches the
+    // cells on a path and beside it, so they are never cached.
     private Stack<Cell> indiscretize(Cell start, Cell goal) {
-        Stack<Cell> path = a_star(start, goal);
+        if (planner == Planner.THETA_STAR)
+            return thetaSearch.search(room, start, goal);
+        return shortcut(plan(start, goal), goal);
+    }
+    
+    // Drops every cell of a grid path that can be skipped in a straight line
+    private Stack<Cell> shortcut(Stack<Cell> path, Cell goal) {
         if (path == null || path.size() < 5)
             return path;
         Stack<Cell> indiscretized = new Stack<Cell>();
@@ -241,11 +694,9 @@ class AStar extends Quagent{
         indiscretized.push(current);
         
         while (!looking.equals(goal)) {
-            Stack<Cell> b = bresenham(current, looking);
-            while (!containsWall(b) && !looking.equals(goal)) {
+            while (room.lineOfSight(current, looking) && !looking.equals(goal)) {
                 next = looking;
                 looking = path.pop();
-                b = bresenham(current, looking);
             }
             if (!looking.equals(goal))
                 indiscretized.push(next);
@@ -258,203 +709,65 @@ class AStar extends Quagent{
     }
     
     /**
-     * Returns all the cells that the line between the passed in cells 
-     *  intersects, using the supercover version of the bresenham algorithm
+     * Start the quagents. Usage:
+     *
+     *	java AStar [agents] [level] [planner]
+     *
+     *	Naming the level saves its map as it is learned, and starts from the
+     *	saved map when the same level is named again. The planner is one of
+     *	the Planner names, in any case, and ANYTIME if none is given. The
+     *	level and the planner may come in either order.
      */
-    private Stack<Cell> bresenham(Cell c1, Cell c2) {
-        
-        // Stack to hold the cells
-        Stack<Cell> line = new Stack<Cell>();
-        
-        // Get endpoint coordinates
-        int y1 = Graph.pointToGrid(c1.y);
-        int y2 = Graph.pointToGrid(c2.y);
-        int x1 = Graph.pointToGrid(c1.x);
-        int x2 = Graph.pointToGrid(c2.x);
-        
-        // loop counter
-        int i;
-        
-        // the step on y and x axis
-        int ystep, xstep;
-        
-        // the error accumulated during the increment
-        int error;
-        
-        // vision the previous value of the error variable
-        int errorprev;
-        
-        // the line points
-        int y = y1, x = x1;
-        
-        // compulsory variables: the double values of dy and dx
-        int ddy, ddx;
-        
-        // Differences
-        int dx = x2 - x1;
-        int dy = y2 - y1;
-        
-        // first point
-        Cell c = room.getCellAtIndex(x1, y1);
-        if (c == null)
-            c = new Cell(0, 0, Cell.Contents.WALL);
-        if (c != null)
-            line.push(c);
-        
-        // If slope is negative
-        if (dy < 0) {
-            ystep = -1;
-            dy = -dy;
-        } else
-            ystep = 1;
-        
-        // If line goes from right to left
-        if (dx < 0) {
-            xstep = -1;
-            dx = -dx;
-        } else
-            xstep = 1;
+    public static void main(String[] args) throws Exception {
         
-        // work with double values for full precision
-        ddy = 2 * dy;
-        ddx = 2 * dx;
+        for (int i = 1; i < args.length; i++) {
+            Planner named = null;
+            for (Planner p : Planner.values())
+                if (p.name().equalsIgnoreCase(args[i]))
+                    named = p;
+            if (named != null)
+                planner = named;
+            else
+                level = args[i];
+        }
+        System.out.println("Planning with "+planner);
         
-        // first octant (0 <= slope <= 1)
-        if (ddx >= ddy){
-            
-            // compulsory initialization (even for errorprev, needed when dx==dy)
-            
-            // start in the middle of the square
-            errorprev = error = dx;
-            
-            // do not use the first point (already done)
-            for (i=0 ; i < dx ; i++){
-                x += xstep;
-                error += ddy;
-                
-                // increment y if AFTER the middle ( > )
-                if (error > ddx){
-                    y += ystep;
-                    error -= ddx;
-                    
-                    // Bottom
-                    if (error + errorprev < ddx) {
-                        c = room.getCellAtIndex(x, y-ystep);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
-                    }
-                    // Left
-                    else if (error + errorprev > ddx) {
-                        c = room.getCellAtIndex(x-xstep, y);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
-                    }
-                    // Both (crosses corner exactly)
-                    else {
-                        c = room.getCellAtIndex(x, y-ystep);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
-                        c = room.getCellAtIndex(x-xstep, y);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
-                    }
+        //Build the room, starting from the last snapshot of the level if
+        //  there is one
+        room = new Graph(CELL_SIZE, true);
+        if (level != null) {
+            File here = new File(".");
+            for (File saved : MapSnapshot.snapshots(here, level)) {
+                long start = System.nanoTime();
+                try {
+                    MapSnapshot.read(saved, room, CELL_SIZE, level);
+                    System.out.println("Loaded "+room.V()+" cells from "+saved+" in "+
+                                       (System.nanoTime()-start)/1000000+" ms");
+                    break;
+                }
+                catch (IOException e) {
+                    System.out.println("Could not load "+saved+": "+e.getMessage());
                 }
-                c = room.getCellAtIndex(x, y);
-                if (c == null)
-                    c = new Cell(0, 0, Cell.Contents.WALL);
-                if (c != null)
-                    line.push(c);
-                errorprev = error;
             }
+            // Never save over a file that may still be mapped
+            snapshot = MapSnapshot.next(here, level);
         }
         
-        // Second octant (slope  > 1)
-        else{
-            errorprev = error = dy;
-            for (i=0 ; i < dy ; i++){
-                y += ystep;
-                error += ddx;
-                if (error > ddy){
-                    x += xstep;
-                    error -= ddy;
-                    if (error + errorprev < ddy) {
-                        c = room.getCellAtIndex(x-xstep, y);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
-                    }
-                    else if (error + errorprev > ddy) {
-                        c = room.getCellAtIndex(x, y-ystep);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
+        // Make quagents, each but the last on its own thread, all mapping
+        //  the same room
+        int agents = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        for (int i = 1; i < agents; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        new AStar();
                     }
-                    else{
-                        c = room.getCellAtIndex(x, y-ystep);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
-                        c = room.getCellAtIndex(x-xstep, y);
-                        if (c == null)
-                            c = new Cell(0, 0, Cell.Contents.WALL);
-                        if (c != null)
-                            line.push(c);
+                    catch (Exception e) {
+                        System.out.println("system failure: "+e);
                     }
                 }
-                c = room.getCellAtIndex(x, y);
-                if (c == null)
-                    c = new Cell(0, 0, Cell.Contents.WALL);
-                if (c != null)
-                    line.push(c);
-                errorprev = error;
-            }
+            }, "quagent-"+i).start();
         }
-        // assert ((y == y2) && (x == x2));
-        // the last point (y2,x2) has to be the same as the last point of the algorithm
-        return line;
-    }
-    
-    private boolean containsWall(Stack<Cell> line) {
-        for (Cell c : line)
-            if (c.isWall())
-                return true;
-        return false;
-    }
-    
-    /**
-     * Reconstructs the path from the current cell through the passed in map
-     *	of parents
-     */
-    private Stack<Cell> reconstruct_path(HashMap<Cell, Cell> cameFrom, Cell current){
-        Stack<Cell> total_path = new Stack<Cell>();
-        total_path.push(current);
-        while (cameFrom.containsKey(current)){
-            current = cameFrom.get(current);
-            total_path.push(current);
-        }
-        return total_path;
-    }
-    
-    /**
-     * Main method just creates the room and the quagent
-     */
-    public static void main(String[] args) throws Exception {
-        
-        //Build the room
-        room = new Graph(CELL_SIZE);
-        
-        // Make quagent
         new AStar();
     }
     
@@ -463,20 +776,22 @@ class AStar extends Quagent{
      */
     AStar() throws Exception {
         super();
-		watchdog = new Timer();
-		watchdog.schedule(new WatchdogTask(), 10*1000);
+		watchdog = new Watchdog(WATCHDOG_TIMEOUT, recoveries());
 		
         try {
             // connect to a new quagent
             
             this.where();
 			
-            // loop forever -- that is until the bot dies of old age
-            while(true) {
+            // loop until the bot dies of old age or gives up
+            while(running) {
                 // handle the events
                 events = this.events();
                 //printEvents(events);
                 parseWalkEvents(events);
+                pickUpReplies();
+                pickUpPlans();
+                saveMap(false);
             }
         }
         catch (QDiedException e) { // the quagent died -- catch that exception
@@ -484,8 +799,15 @@ class AStar extends Quagent{
         }
         catch (Exception e) { // something else went wrong???
             System.out.println("system failure: "+e);
-            System.exit(0);
         }
+        // Stop only this agent, keeping what was learned for the others and
+        //  the next agent
+        watchdog.stop();
+        System.out.println(watchdog);
+        Future<?> saved = saveMap(true);
+        if (saved != null)
+            saved.get();
+        plannerThread.shutdown();
     }
     
     /**
@@ -512,296 +834,248 @@ class AStar extends Quagent{
     public void parseWalkEvents(Events events) {
 		//System.out.println(this.state);
         for (int ix = 0; ix < events.size(); ix++) {
-            String e = events.eventAt(ix);
-            //printEvents(events);
-            try{
-                switch (this.state) {
-					case UNSTICKING:
-						if (e.indexOf("STOPPED") >= 0) {
-							kickDog();
-							String[] tokens = e.split("[()\\s]+");
-							double dist = Double.parseDouble(tokens[2]);
-							System.out.println(dist);
-							/*Guagent is stuck so unstick*/
-							if (dist < 1.0){
-								this.state = State.UNSTICKING;
-								target = room.getIsolatedUnexplored(location, 200);
-								int random = rand.nextInt(270)+90;
-								this.turn(random);
-							}
-							else{
-								path = smoothStraightaways(location, target);
-								this.state = State.SEARCHING;
-								this.where();
-							}
-                        }
-                        
-                        //Now we are facing the target so we can walk there
-                        if (e.indexOf("turnby") >= 0) {
-							kickDog();
-                            this.walk(2*CELL_SIZE);
-                        }
-						break;
-                    case START:
-                        if (e.indexOf("getwhere") >= 0) {
-							kickDog();
-                            String[] tokens = e.split("[()\\s]+");
-                            
-                            x = Double.parseDouble(tokens[3]);
-                            y = Double.parseDouble(tokens[4]);
-                            z = Double.parseDouble(tokens[5]);
-                            roll = Double.parseDouble(tokens[6]);
-                            pitch = Double.parseDouble(tokens[7]);
-                            yaw = Double.parseDouble(tokens[8]);
-                            velocity = Double.parseDouble(tokens[9]);
-                            
-							last_location = location;
-                            location = new Cell(
-                                                fitToGrid(x),
-                                                fitToGrid(y));
-							int i, j;
-							for(j=fitToGrid(y-200);j<fitToGrid(y+200);j=j+CELL_SIZE){
-								for(i=fitToGrid(x-200);i<fitToGrid(x+200);i=i+CELL_SIZE){
-									room.markExplored(new Cell(i, j));
-								}
-							}
-                            room.addVertex(location);
-                            this.rays(16);
-                        }
+            handleEvent(events.eventAt(ix));
+        }
+    }
+    
+    /**
+     * Handle a single event
+     */
+    private void handleEvent(String e) {
+        try{
+            int kind = parser.parse(e);
+            switch (this.state) {
+				case UNSTICKING:
+					if (kind == EventParser.STOPPED) {
+						kickDog();
+						double dist = parser.distance;
+						System.out.println(dist);
+						/*Guagent is stuck so unstick*/
+						if (dist < 1.0){
+						    this.state = State.UNSTICKING;
+						    final Cell here = location;
+						    update(new Runnable() {
+						        public void run() {
+						            target = room.getIsolatedUnexplored(here, 200);
+						        }
+						    });
+						    int random = rand.nextInt(270)+90;
+						    this.turn(random);
+						}
+						else{
+						    final Cell here = location;
+						    submitPlan(new Callable<Stack<Cell>>() {
+						        public Stack<Cell> call() {
+						            return smoothStraightaways(here, target);
+						        }
+						    }, false, false);
+						    this.state = State.SEARCHING;
+						    sense();
+						}
+                    }
+                    
+                    //Now we are facing the target so we can walk there
+                    if (kind == EventParser.TURNBY) {
+						kickDog();
+                        this.walk(2*CELL_SIZE);
+                    }
+					break;
+                case START:
+                    if (kind == EventParser.GETWHERE) {
+						kickDog();
+                        readWhere();
                         
-                        if (e.indexOf("rays") >= 0) {
-							kickDog();
-                            String[] tokens = e.split("[()\\s]+");
-                            for (int i = 0; i<((tokens.length - 4)/5); i++){
-                                int base = 5+5*i;
-                                Cell.Contents contents = Cell.Contents.EMPTY;
-                                if(tokens[base].equals("world_spawn")){
-                                    contents = Cell.Contents.WALL;
-                                }
-                                else if(tokens[base].equals("TOFU")){
-                                    contents = Cell.Contents.TOFU;
-                                }
-                                double ray_x = Double.parseDouble(tokens[base+1]) + x;
-                                double ray_y = Double.parseDouble(tokens[base+2]) + y;
-                                Cell newCell = new Cell(
-													fitToGrid(ray_x),
-													fitToGrid(ray_y), contents);
-								//System.out.println("Current: " + location + ", Ray: " + newCell);
-                                room.addVertex(newCell);
-                                room.addLine(location,newCell);
-                                
-                            }
-                            //room.print();
-                            //Attempt to go as far away as possible
-							target = room.getIsolatedUnexplored(location, 200);
-                            //path = smoothStraightaways(location, target);
-							path = indiscretize(location, room.getFarthestUnexplored(location));
-                            state = State.SEARCHING;
-                            
-                            //If we don't have a path, find a new one
-                            if(path == null){
-                                //System.out.println("Destination: " + room.getFarthestUnexplored(location));
-                                //path = smoothStraightaways(location, target);
-								path = indiscretize(location, room.getFarthestUnexplored(location));
-                            }
-                            //If there is still no path, one doesn't exist. Self destruct
-                            if(path == null){
-                                System.out.println("No path");
-                                System.exit(0);
-                            }
-                            //We have a path, so pop off the next location and go there
-                            if(!path.isEmpty()){
-                                next = path.pop();
-                                double x2 = next.x - x;
-                                double y2 = next.y - y;
-                                double angle = Math.toDegrees(Math.atan2(y2, x2)) - this.pitch;
-                                this.turn((int)angle);
+						last_location = location;
+						location = new Cell(
+						                    fitToGrid(x),
+						                    fitToGrid(y));
+						final Cell here = location;
+						final double px = x, py = y;
+						update(new Runnable() {
+						    public void run() {
+						        room.markExplored(fitToGrid(px-200), fitToGrid(py-200),
+						                          fitToGrid(px+200), fitToGrid(py+200));
+						        room.addVertex(here);
+						    }
+						});
+						this.rays(RAYS);
+                    }
+                    
+                    if (kind == EventParser.RAYS) {
+						kickDog();
+                        //Add every hit and everything in between at once
+                        ingestRays();
+                        //Attempt to go as far away as possible, and go there once
+                        //  the path is planned
+                        final Cell here = location;
+                        submitPlan(new Callable<Stack<Cell>>() {
+                            public Stack<Cell> call() {
+                                target = room.getIsolatedUnexplored(here, 200);
+                                return indiscretize(here, room.getFarthestUnexplored(here));
                             }
-                            
-                        }
-                        break;
-                    case SEARCHING:
-                        if (e.indexOf("getwhere") >= 0) {
-							kickDog();
-                            String[] tokens = e.split("[()\\s]+");
-                            
-                            x = Double.parseDouble(tokens[3]);
-                            y = Double.parseDouble(tokens[4]);
-                            z = Double.parseDouble(tokens[5]);
-                            roll = Double.parseDouble(tokens[6]);
-                            pitch = Double.parseDouble(tokens[7]);
-                            yaw = Double.parseDouble(tokens[8]);
-                            velocity = Double.parseDouble(tokens[9]);
-                            
-							last_location = location;
-							
-                            location = new Cell(
-                                                fitToGrid(x),
-                                                fitToGrid(y));
-							int i, j;
-							for(j=fitToGrid(y-200);j<fitToGrid(y+200);j=j+CELL_SIZE){
-								for(i=fitToGrid(x-200);i<fitToGrid(x+200);i=i+CELL_SIZE){
-									room.markExplored(new Cell(i, j));
-								}
-							}
-							
-							room.printUnexplored();
-							this.radius(10000);
-                        }
+                        }, true, false);
+                        state = State.SEARCHING;
                         
+                    }
+                    break;
+                case SEARCHING:
+                    if (kind == EventParser.GETWHERE) {
+						kickDog();
+                        readWhere();
                         
-                        if (e.indexOf("rays") >= 0) {
-							kickDog();
-                            String[] tokens = e.split("[()\\s]+");
-                            for (int i = 0; i<((tokens.length - 4)/5); i++){
-                                int base = 5+5*i;
-                                Cell.Contents contents = Cell.Contents.EMPTY;
-                                if(tokens[base].equals("worldspawn")){
-                                    contents = Cell.Contents.WALL;
-                                }
-                                else if(tokens[base].equals("TOFU")){
-                                    contents = Cell.Contents.TOFU;
-                                }
-                                //Adjust the ray location from relative to absolute coordinates
-                                double ray_x = Double.parseDouble(tokens[base+1]) + x;
-                                double ray_y = Double.parseDouble(tokens[base+2]) + y;
-                                //Add the point where the ray hit
-                                room.addVertex(new Cell(
-													fitToGrid(ray_x),
-													fitToGrid(ray_y), contents));
-                                //...and everything in between
-                                room.addLine(location, new Cell(
-													fitToGrid(ray_x),
-													fitToGrid(ray_y)));
-                                
-                            }
-                            
+						last_location = location;
 
-                            //If we don't have a path, find a new one
-                            if(path == null || path.isEmpty()){
-                                if (room.numUnexplored() > room.V()/2)
-                                    target = room.getIsolatedUnexplored(location, 200);
-                                else
-                                    target = room.getIsolatedUnseen(location, 100);
-								followingTofu = false;
-                                //path = smoothStraightaways(location, target);
-                                path = indiscretize(location, target);
-                            }
-                            //If there is still no path, one doesn't exist. Self destruct
-                            if(path == null || path.isEmpty()){
-                                System.out.println("No path");
-                                System.exit(0);
-                            }
-                            //We have a path, so pop off the next location and go there
-                            if(!path.isEmpty()){
-								room.printMap(path);
-                                next = path.pop();
-                                double x2 = next.x - x;
-                                double y2 = next.y - y;
-                                double angle = Math.toDegrees(Math.atan2(y2, x2)) - this.pitch;
-                                this.turn((int)angle);
-                            }
+						location = new Cell(
+						                    fitToGrid(x),
+						                    fitToGrid(y));
+						final Cell here = location;
+						final double px = x, py = y;
+						update(new Runnable() {
+						    public void run() {
+						        room.markExplored(fitToGrid(px-200), fitToGrid(py-200),
+						                          fitToGrid(px+200), fitToGrid(py+200));
+						        room.printUnexplored();
+						    }
+						});
+
+						if(sensing.isEmpty())
+							this.radius(SENSE_RADIUS);
+                    }
+                    
+                    
+                    if (kind == EventParser.RAYS) {
+						kickDog();
+                        //Add the points where the rays hit and everything
+                        //  in between in one pass
+                        ingestRays();
+
+                        //If a path is on its way, go once it arrives
+                        if(planned != null){
+                            follow = true;
                         }
-                        
-						
-                        
-						
-                        if (e.indexOf("STOPPED") >= 0) {
-							kickDog();
-							String[] tokens = e.split("[()\\s]+");
-							double dist = Double.parseDouble(tokens[2]);
-							//System.out.println(dist);
-							/*Guagent is stuck so unstick*/
-							if (dist < 1.0){
-								room.removeEdge(location, next);
-								this.state = State.UNSTICKING;
-								int random = rand.nextInt(270)+90;
-								path=null;
-								this.turn(random);
-							}
-							else{
-								this.where();
-							}
+                        //If we don't have a path, find a new one
+                        else if(path == null || path.isEmpty()){
+                            explore();
                         }
-                        
-                        //Now we are facing the target so we can walk there
-                        if (e.indexOf("turnby") >= 0) {
-							kickDog();
-                            double x2 = next.x - x;
-                            double y2 = next.y - y;
-                            double dist = Math.sqrt(x2*x2 + y2*y2);
-                            this.walk((int)dist);
+                        //We have a path, so pop off the next location and go there
+                        else{
+                            followPath();
                         }
-						
-						
-						if(e.indexOf("ask radius") >= 0){
-							kickDog();
-							double tofu_x=0;
-							double tofu_y=0;
-							double dist = Double.MAX_VALUE;
-							double angle = 0;
-							boolean tofuFound = false;
-							String[] tokens = e.split("[()\\s]+");
-							int numItems = Integer.parseInt(tokens[4]);
-							//this.radius(10000);
-							for (int i = 0; i<numItems; i++){
-								if (tokens[5+i*4].equals("tofu")){
-									tofuFound = true;
-									double temp_tofu_x = Double.parseDouble(tokens[5+i*4+1]);
-									double temp_tofu_y = Double.parseDouble(tokens[5+i*4+2]);
-									double temp_dist = Math.sqrt(temp_tofu_x*temp_tofu_x + temp_tofu_y*temp_tofu_y);
-									if(temp_dist<dist){
-										dist = temp_dist;
-										tofu_x = temp_tofu_x + x;
-										tofu_y = temp_tofu_y + y;
-										
-										angle = Math.toDegrees(Math.atan2(tofu_x, tofu_y)) - this.pitch;
-									}
-									//System.out.println("ANGLE: " + angle + " DIST: " + dist);
+                    }
+                    
+					
+                    
+					
+                    if (kind == EventParser.STOPPED) {
+						kickDog();
+                    	double dist = parser.distance;
+                    	//System.out.println(dist);
+						/*Guagent is stuck so unstick*/
+						if (dist < 1.0){
+						    final Cell here = location, blocked = next;
+						    update(new Runnable() {
+						        public void run() {
+						            room.removeEdge(here, blocked);
+						        }
+						    });
+						    this.state = State.UNSTICKING;
+						    int random = rand.nextInt(270)+90;
+						    dropPlan();
+						    path=null;
+						    this.turn(random);
+						}
+						else{
+							sense();
+						}
+                    }
+                    
+                    //Now we are facing the target so we can walk there
+                    if (kind == EventParser.TURNBY) {
+						kickDog();
+                        double x2 = next.x - x;
+                        double y2 = next.y - y;
+                        double dist = Math.sqrt(x2*x2 + y2*y2);
+                        this.walk((int)dist);
+                    }
+					
+					
+					if(kind == EventParser.RADIUS){
+						kickDog();
+						double tofu_x=0;
+						double tofu_y=0;
+						double dist = Double.MAX_VALUE;
+						double angle = 0;
+						boolean tofuFound = false;
+						//this.radius(10000);
+						for (int i = 0; i<parser.num_items; i++){
+							if (parser.item_tofu[i]){
+								tofuFound = true;
+								double temp_tofu_x = parser.item_x[i];
+								double temp_tofu_y = parser.item_y[i];
+								double temp_dist = Math.sqrt(temp_tofu_x*temp_tofu_x + temp_tofu_y*temp_tofu_y);
+								if(temp_dist<dist){
+									dist = temp_dist;
+									tofu_x = temp_tofu_x + x;
+									tofu_y = temp_tofu_y + y;
+									
+									angle = Math.toDegrees(Math.atan2(tofu_x, tofu_y)) - this.pitch;
 								}
+								//System.out.println("ANGLE: " + angle + " DIST: " + dist);
 							}
-							System.out.println("Tofu: "+fitToGrid(tofu_x)+", "+fitToGrid(tofu_y)+" "+followingTofu);
-							room.markExplored(location,200);
-							if(!tofuFound){
-								this.rays(16);
+						}
+						System.out.println("Tofu: "+fitToGrid(tofu_x)+", "+fitToGrid(tofu_y)+" "+followingTofu);
+						final Cell here = location;
+						update(new Runnable() {
+						    public void run() {
+						        room.markExplored(here, 200);
+						    }
+						});
+						if(!tofuFound){
+							//A scan already on its way with the last sense cycle will do
+							if(sensing.isEmpty())
+								this.rays(RAYS);
+						}
+						else{
+							
+							if (dist > 60)
+							{
+								if(!followingTofu){
+								    final Cell tofu_location = new Cell(fitToGrid(tofu_x), fitToGrid(tofu_y));
+								    followingTofu = true;
+								    //Only head for tofu that is on the map
+								    submitPlan(new Callable<Stack<Cell>>() {
+								        public Stack<Cell> call() {
+								            if(!room.contains(tofu_location))
+								                return null;
+								            target = tofu_location;
+								            return indiscretize(here, target);
+								        }
+								    }, false, true);
+								}
 							}
 							else{
-								
-								if (dist > 60)
-								{
-									if(!followingTofu){
-										Cell tofu_location = new Cell(fitToGrid(tofu_x), fitToGrid(tofu_y));
-										if(room.contains(tofu_location)){
-											target = tofu_location;
-											path = indiscretize(location, target);
-											followingTofu = true;
-											
-										}
-									}
-								}
-								else{
-									this.pickup("tofu");
-									followingTofu = false;
-								}
-								this.rays(16);
+								this.pickup("tofu");
+								followingTofu = false;
 							}
-                            
+							if(sensing.isEmpty())
+								this.rays(RAYS);
 						}
                         
-                        break;
-						
+					}
+                    
+                    break;
 					
-                }
-            }
-            catch (QDiedException er) { // the quagent died -- catch that exception
-                System.out.println("bot died!");
-            }
-            catch (Exception er) { // something else went wrong???
-                System.out.println("system failure: "+er);
-				er.printStackTrace();
-                System.exit(0);
+				
             }
         }
+        catch (QDiedException er) { // the quagent died -- catch that exception
+            System.out.println("bot died!");
+        }
+        catch (Exception er) { // something else went wrong???
+            System.out.println("system failure: "+er);
+			er.printStackTrace();
+            running = false;
+        }
     }
 }
 
@@ -0,0 +1,609 @@
+import java.util.*;
+
+/**
+ * Anytime planner based on ARA*. A first path is found quickly with a
+ *	heuristic inflated by epsilon, and then epsilon is lowered step by step,
+ *	each pass reusing the work of the one before, until the path is optimal.
+ *	Every call is given a time budget and returns the best path found when
+ *	it runs out, so planning never holds up the agent for long, and the
+ *	search can be carried on between events.
+ *
+ *	The search runs backwards from the goal, so every cell it has reached
+ *	knows a path to the goal, and the agent can switch to an improved path
+ *	from wherever it is along the old one. Step costs are the same as in
+ *	PathSearch.a_star. As in DStarLite, the search is kept while the agent
+ *	moves and the map changes, so it goes on improving across events: a
+ *	new start only adds to a key modifier, and a changed cell only drops
+ *	the paths that ran through it before the cells around them are
+ *	searched again.
+ */
+class AnytimeSearch implements Graph.Listener {
+
+    /**
+     * Distance used for cells that cannot reach the goal
+     */
+    private static final int INFINITY = Integer.MAX_VALUE/2;
+
+    /**
+     * Epsilon of the first pass, and how much it is lowered after each pass
+     */
+    static final double INITIAL_EPSILON = 3.0;
+    static final double EPSILON_STEP = 0.5;
+
+    /**
+     * Number of cells expanded between looks at the clock
+     */
+    private static final int CLOCK_INTERVAL = 64;
+
+    /**
+     * Marks used while working out which cells lost their path to a
+     *	changed cell
+     */
+    private static final byte UNKNOWN = 0, KEPT = 1, DROPPED = 2;
+
+    /**
+     * Graph being planned over
+     */
+    private Graph room;
+
+    /**
+     * Cells to expand in the current pass, ordered by inflated f score and
+     *	then by insertion order
+     */
+    private IndexedHeap open;
+
+    /**
+     * Cells expanded in the current pass, one bit per id
+     */
+    private long[] closed;
+
+    /**
+     * Cells improved after being expanded in the current pass, to be
+     *	expanded again in the next one, one bit per id and in order
+     */
+    private long[] in_incons;
+    private int[] incons;
+    private int num_incons;
+
+    /**
+     * Distance to the goal of each cell, and the next cell towards the goal
+     */
+    private int[] g_score;
+    private int[] parent;
+
+    /**
+     * Cells reported changed since the search was last repaired, one bit
+     *	per id, and the same ids in the order they were reported
+     */
+    private long[] pending;
+    private int[] changes;
+    private int num_changes;
+
+    /**
+     * Start and goal of the current search, as passed in, and their ids.
+     *	goal_id is NONE if there is no search.
+     */
+    private Cell start;
+    private Cell goal;
+    private int start_id;
+    private int goal_id;
+
+    /**
+     * Sum of the heuristic distances the start has moved since the search
+     *	began. It is added to every key, so keys worked out for an earlier
+     *	start stay below the ones they would get now and are only redone
+     *	when they reach the top of the open list.
+     */
+    private long km;
+
+    /**
+     * Epsilon of the current pass, and the proven bound on how far the
+     *	best path found so far can be from optimal
+     */
+    private double epsilon;
+    private double bound;
+
+    /**
+     * True once the goal has changed, once the search is optimal,
+     *	and once it has proven there is no path
+     */
+    private boolean stale;
+    private boolean optimal;
+    private boolean exhausted;
+
+    /**
+     * Number of cells opened in the current search, used to break ties
+     */
+    private int opened;
+
+    /**
+     * Number of cells expanded by the last call
+     */
+    private int expanded;
+
+    /**
+     * Scratch space for the ids of the open list when its keys are redone,
+     *	and for walking paths while repairing
+     */
+    private int[] scratch;
+
+    /**
+     * Marks of every cell while repairing
+     */
+    private byte[] mark;
+
+    /**
+     * Constructor initializes variables and starts listening to the graph
+     */
+    AnytimeSearch(Graph room){
+        this.room = room;
+        this.open = new IndexedHeap(1024);
+        this.closed = new long[16];
+        this.in_incons = new long[16];
+        this.incons = new int[64];
+        this.g_score = new int[1024];
+        this.parent = new int[1024];
+        this.pending = new long[16];
+        this.changes = new int[64];
+        this.scratch = new int[64];
+        this.mark = new byte[1024];
+        Arrays.fill(g_score, INFINITY);
+        this.goal_id = CellIndex.NONE;
+        room.addListener(this);
+    }
+
+    /**
+     * Accessor method for the number of cells expanded by the last call
+     */
+    int expanded(){
+        return expanded;
+    }
+
+    /**
+     * Accessor method for the bound on how far the best path found so far
+     *	can be from optimal, 1 once it is optimal
+     */
+    double bound(){
+        return bound;
+    }
+
+    /**
+     * Accessor method for the goal of the current search, null if there is
+     *	none
+     */
+    Cell goal(){
+        return goal_id == CellIndex.NONE ? null : goal;
+    }
+
+    /**
+     * Returns true if the current search can still be improved
+     */
+    boolean searching(){
+        return goal_id != CellIndex.NONE && !stale &&
+               (num_changes > 0 || (!optimal && !exhausted));
+    }
+
+    /**
+     * Returns true if the current search has proven there is no path
+     */
+    boolean exhausted(){
+        return exhausted;
+    }
+
+    /**
+     * Note a changed cell that the search has reached or could reach, to be
+     *	repaired on the next call. The search is only dropped if the goal
+     *	itself changes, since stepping onto it is part of every distance.
+     */
+    public void cellChanged(int id){
+        if (goal_id == CellIndex.NONE || stale)
+            return;
+        if (id == goal_id){
+            stale = true;
+            return;
+        }
+        boolean near = reached(id);
+        for (int dir = 0; !near && dir < 4; dir++)
+            near = reached(room.neighborId(id, dir));
+        if (!near)
+            return;
+        ensureCapacity(id+1);
+        if ((pending[id >>> 6] & (1L << id)) != 0)
+            return;
+        pending[id >>> 6] |= 1L << id;
+        if (num_changes == changes.length)
+            changes = Arrays.copyOf(changes, num_changes*2);
+        changes[num_changes++] = id;
+    }
+
+    /**
+     * Find a path from start to goal within the passed in budget, in
+     *	milliseconds. Planning again towards the same goal carries on the
+     *	search, from wherever the start now is and whatever has changed in
+     *	the map. Returns the best path found so far, or null if none has
+     *	been found yet or there is none, which exhausted tells apart.
+     */
+    Stack<Cell> plan(Cell start, Cell goal, long budget){
+        long deadline = System.nanoTime() + budget*1000000L;
+        expanded = 0;
+        if (start.equals(goal)){
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int from = room.idOf(start);
+        int target = room.idOf(goal);
+        if (from == CellIndex.NONE || target == CellIndex.NONE ||
+            room.getCell(target).isWall())
+            return null;
+        if (stale || target != goal_id){
+            this.start = start;
+            restart(from, target);
+        }
+        else if (from != start_id){
+            km += this.start.heuristic(start);
+            this.start = start;
+            this.start_id = from;
+            enterStart();
+            newPass();
+            unsettle();
+        }
+        this.goal = goal;
+        repair();
+        run(deadline);
+        return pathFrom(start);
+    }
+
+    /**
+     * Carry on improving the current search within the passed in budget, in
+     *	milliseconds. Returns true if a better path was found, or the path
+     *	was repaired after the map changed.
+     */
+    boolean improve(long budget){
+        long deadline = System.nanoTime() + budget*1000000L;
+        expanded = 0;
+        if (!searching())
+            return false;
+        boolean changed = num_changes > 0;
+        repair();
+        int cost = g_score[start_id];
+        double before = bound;
+        run(deadline);
+        return changed || g_score[start_id] < cost || bound < before;
+    }
+
+    /**
+     * Return the best known path from the passed in cell to the goal, or
+     *	null if the search has not reached the cell. The path begins with
+     *	the passed in cell and ends with the goal of the search.
+     */
+    Stack<Cell> pathFrom(Cell from){
+        if (goal_id == CellIndex.NONE || stale || num_changes > 0)
+            return null;
+        int id = room.idOf(from);
+        if (!reached(id))
+            return null;
+        ArrayList<Cell> forward = new ArrayList<Cell>();
+        forward.add(from);
+        while (id != goal_id){
+            id = parent[id];
+            if (forward.size() > room.V())
+                return null;
+            forward.add(id == goal_id ? goal : room.getCell(id));
+        }
+        Stack<Cell> total_path = new Stack<Cell>();
+        for (int i = forward.size()-1; i >= 0; i--)
+            total_path.push(forward.get(i));
+        return total_path;
+    }
+
+    /**
+     * Run passes until the search is optimal or proven hopeless, or the
+     *	clock passes the deadline
+     */
+    private void run(long deadline){
+        while (searching()){
+            if (!improvePath(deadline))
+                return;
+            finishPass();
+            if (optimal || exhausted)
+                return;
+            epsilon = Math.max(1.0, epsilon - EPSILON_STEP);
+            reopen();
+        }
+    }
+
+    /**
+     * Expand cells until no cell on the open list could lead to a path
+     *	from the start cheaper than the one already known. A key worked out
+     *	for an earlier start is redone when it reaches the top instead.
+     *	Returns false if the deadline passed first.
+     */
+    private boolean improvePath(long deadline){
+        while (!open.isEmpty()){
+            int current = open.peek();
+            long fresh = key(current);
+            if (open.peekKey() < fresh){
+                open.push(current, fresh);
+                continue;
+            }
+            if (inflated(start_id) <= (fresh >>> 32))
+                break;
+            if (++expanded % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline)
+                return false;
+            open.pop();
+            closed[current >>> 6] |= 1L << current;
+            // The start is never stepped onto, so it may be a wall
+            if (room.getCell(current).isWall())
+                continue;
+            int step = room.stepCost(current);
+            int mask = room.edgeMask(current);
+            for (int dir = 0; dir < 4; dir++){
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int neighbor = room.neighborId(current, dir);
+                if (room.getCell(neighbor).isWall() && neighbor != start_id)
+                    continue;
+                int tentative_g_score = g_score[current] + step;
+                if (tentative_g_score >= g_score[neighbor])
+                    continue;
+                g_score[neighbor] = tentative_g_score;
+                parent[neighbor] = current;
+                if (!isClosed(neighbor))
+                    open.push(neighbor, key(neighbor));
+                else
+                    addIncons(neighbor);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Work out what the finished pass has proven. The best path is within
+     *	its cost over the smallest uninflated f score of any cell left to
+     *	expand of optimal.
+     */
+    private void finishPass(){
+        if (g_score[start_id] >= INFINITY){
+            exhausted = open.isEmpty();
+            return;
+        }
+        long lower = INFINITY;
+        for (int i = 0; i < open.size(); i++)
+            lower = Math.min(lower, f_score(open.get(i)));
+        for (int i = 0; i < num_incons; i++)
+            lower = Math.min(lower, f_score(incons[i]));
+        bound = Math.min(epsilon, Math.max(1.0, (double)g_score[start_id]/lower));
+        optimal = epsilon <= 1.0 || bound <= 1.0;
+        if (optimal)
+            bound = 1.0;
+    }
+
+    /**
+     * Start a new pass with the same epsilon. Cells improved after being
+     *	expanded go back on the open list and nothing counts as expanded any
+     *	more. The keys already on the open list are left alone, since the
+     *	key modifier keeps them below their current values.
+     */
+    private void newPass(){
+        for (int i = 0; i < num_incons; i++){
+            int id = incons[i];
+            in_incons[id >>> 6] &= ~(1L << id);
+            if (g_score[id] < INFINITY)
+                open.push(id, key(id));
+        }
+        num_incons = 0;
+        Arrays.fill(closed, 0L);
+    }
+
+    /**
+     * Start the next pass with a lowered epsilon, redoing every key
+     */
+    private void reopen(){
+        newPass();
+        int n = open.size();
+        if (scratch.length < n)
+            scratch = new int[Math.max(n, scratch.length*2)];
+        for (int i = 0; i < n; i++)
+            scratch[i] = open.get(i);
+        for (int i = 0; i < n; i++)
+            open.push(scratch[i], key(scratch[i]));
+    }
+
+    /**
+     * Step onto a new start that is a wall from the cells around it. Walls
+     *	are only entered as the start, so cells expanded for an earlier start
+     *	never stepped onto this one.
+     */
+    private void enterStart(){
+        if (!room.getCell(start_id).isWall())
+            return;
+        int mask = room.edgeMask(start_id);
+        for (int dir = 0; dir < 4; dir++){
+            if ((mask & (1 << dir)) == 0)
+                continue;
+            int n = room.neighborId(start_id, dir);
+            if (!reached(n) || room.getCell(n).isWall())
+                continue;
+            int tentative_g_score = g_score[n] + room.stepCost(n);
+            if (tentative_g_score < g_score[start_id]){
+                g_score[start_id] = tentative_g_score;
+                parent[start_id] = n;
+            }
+        }
+    }
+
+    /**
+     * Forget what was proven for the old start, which may not hold for the
+     *	new one, so the search carries on until it does
+     */
+    private void unsettle(){
+        bound = Double.POSITIVE_INFINITY;
+        optimal = false;
+        exhausted = false;
+    }
+
+    /**
+     * Bring the search up to date with the cells changed since the last
+     *	call. Every cell whose path to the goal runs through a changed cell
+     *	loses it, since the step onto the changed cell or its edges may have
+     *	changed. The cells around the changed cells and the ones that lost
+     *	their paths are then searched again from their own distances, in a
+     *	new pass with the same epsilon, which also picks up any new cells
+     *	and edges.
+     */
+    private void repair(){
+        if (num_changes == 0)
+            return;
+        int V = room.V();
+        ensureCapacity(V);
+        Arrays.fill(mark, 0, V, UNKNOWN);
+        mark[goal_id] = KEPT;
+        for (int i = 0; i < num_changes; i++)
+            mark[changes[i]] = DROPPED;
+        // Follow every reached cell's path until it meets a marked cell,
+        //  and give each cell on the way the same mark
+        for (int id = 0; id < V; id++){
+            if (mark[id] != UNKNOWN || !reached(id))
+                continue;
+            int n = 0;
+            int at = id;
+            while (at != CellIndex.NONE && mark[at] == UNKNOWN){
+                if (n == scratch.length)
+                    scratch = Arrays.copyOf(scratch, n*2);
+                scratch[n++] = at;
+                at = parent[at];
+            }
+            byte found = at == CellIndex.NONE ? DROPPED : mark[at];
+            for (int i = 0; i < n; i++)
+                mark[scratch[i]] = found;
+        }
+        for (int id = 0; id < V; id++){
+            if (mark[id] != DROPPED)
+                continue;
+            g_score[id] = INFINITY;
+            parent[id] = CellIndex.NONE;
+            open.remove(id);
+        }
+        for (int id = 0; id < V; id++){
+            if (mark[id] != DROPPED)
+                continue;
+            for (int dir = 0; dir < 4; dir++){
+                int n = room.neighborId(id, dir);
+                if (n != CellIndex.NONE && mark[n] == KEPT)
+                    addIncons(n);
+            }
+        }
+        for (int i = 0; i < num_changes; i++)
+            pending[changes[i] >>> 6] &= ~(1L << changes[i]);
+        num_changes = 0;
+        newPass();
+        unsettle();
+    }
+
+    /**
+     * Drop the previous search and start a new one
+     */
+    private void restart(int from, int target){
+        int V = room.V();
+        ensureCapacity(V);
+        open.clear();
+        Arrays.fill(g_score, INFINITY);
+        Arrays.fill(closed, 0L);
+        Arrays.fill(in_incons, 0L);
+        for (int i = 0; i < num_changes; i++)
+            pending[changes[i] >>> 6] &= ~(1L << changes[i]);
+        num_changes = 0;
+        num_incons = 0;
+        opened = 0;
+        km = 0;
+        this.start_id = from;
+        this.goal_id = target;
+        this.epsilon = INITIAL_EPSILON;
+        this.stale = false;
+        unsettle();
+        g_score[target] = 0;
+        parent[target] = CellIndex.NONE;
+        open.push(target, key(target));
+    }
+
+    /**
+     * Queue a cell that has already been reached to be expanded in the
+     *	next pass
+     */
+    private void addIncons(int id){
+        if ((in_incons[id >>> 6] & (1L << id)) != 0)
+            return;
+        in_incons[id >>> 6] |= 1L << id;
+        if (num_incons == incons.length)
+            incons = Arrays.copyOf(incons, num_incons*2);
+        incons[num_incons++] = id;
+    }
+
+    /**
+     * Inflated f score of a cell, counted from the current start and moved
+     *	on by the key modifier
+     */
+    private long inflated(int id){
+        int h = room.getCell(id).heuristic(start);
+        long f = g_score[id] + (long)(epsilon*(h + km));
+        return Math.min(f, INFINITY);
+    }
+
+    /**
+     * Open list key of a cell, its inflated f score and then the order it
+     *	was opened in
+     */
+    private long key(int id){
+        long order = open.contains(id) ? open.key(id) & 0xffffffffL : opened++;
+        return (inflated(id) << 32) | order;
+    }
+
+    /**
+     * Uninflated f score of a cell, which never overestimates the cost of
+     *	a path from the start through it
+     */
+    private long f_score(int id){
+        return (long)g_score[id] + room.getCell(id).heuristic(start);
+    }
+
+    /**
+     * Returns true if the search has found a path to the goal from the
+     *	cell with the passed in id
+     */
+    private boolean reached(int id){
+        return id != CellIndex.NONE && id < g_score.length &&
+               g_score[id] < INFINITY;
+    }
+
+    /**
+     * Returns true if the cell with the passed in id has been expanded in
+     *	the current pass
+     */
+    private boolean isClosed(int id){
+        return (closed[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Make room for ids below the passed in capacity. New cells start out
+     *	unable to reach the goal.
+     */
+    private void ensureCapacity(int capacity){
+        open.ensureCapacity(capacity);
+        if (g_score.length < capacity){
+            int old = g_score.length;
+            int n = Math.max(capacity, old*2);
+            g_score = Arrays.copyOf(g_score, n);
+            parent = Arrays.copyOf(parent, n);
+            mark = new byte[n];
+            Arrays.fill(g_score, old, n, INFINITY);
+        }
+        int words = (capacity + 63) >>> 6;
+        if (closed.length < words){
+            int n = Math.max(words, closed.length*2);
+            closed = Arrays.copyOf(closed, n);
+            in_incons = Arrays.copyOf(in_incons, n);
+            pending = Arrays.copyOf(pending, n);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/**
+ * Growable list of cells given as packed grid coordinates, each with the
+ *	contents it was seen with. A unique buffer keeps only the first sighting
+ *	of every cell and records whether it was ever seen as a wall, which is
+ *	what Graph needs to commit a whole scan at once.
+ */
+class CellBuffer {
+
+    /**
+     * Flag added to the contents of a cell that was seen as a wall
+     */
+    static final int WALL_SEEN = 4;
+
+    /**
+     * Packed grid coordinates of each cell
+     */
+    private long[] keys;
+
+    /**
+     * Contents each cell was first seen with, plus WALL_SEEN
+     */
+    private byte[] contents;
+
+    /**
+     * Number of cells in the buffer
+     */
+    private int size;
+
+    /**
+     * Index from packed coordinates to positions in the buffer, null unless
+     *	the buffer is unique
+     */
+    private CellIndex index;
+
+    /**
+     * Constructor initializes variables
+     */
+    CellBuffer(int capacity, boolean unique){
+        this.keys = new long[Math.max(capacity, 16)];
+        this.contents = new byte[keys.length];
+        this.size = 0;
+        this.index = unique ? new CellIndex(capacity) : null;
+    }
+
+    /**
+     * Accessor method for number of cells
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * Return the packed grid coordinates of the cell at position i
+     */
+    long key(int i){
+        return keys[i];
+    }
+
+    /**
+     * Return the grid content the cell at position i was first seen with
+     */
+    int content(int i){
+        return contents[i] & ~WALL_SEEN;
+    }
+
+    /**
+     * Returns true if the cell at position i was ever seen as a wall
+     */
+    boolean wallSeen(int i){
+        return (contents[i] & WALL_SEEN) != 0;
+    }
+
+    /**
+     * Add a cell seen with the passed in grid content. A unique buffer only
+     *	notes a wall sighting for cells it already holds.
+     */
+    void add(int gx, int gy, int content){
+        long key = CellIndex.key(gx, gy);
+        int seen = content == TileGrid.WALL ? WALL_SEEN : 0;
+        if (index != null) {
+            int i = index.get(key);
+            if (i != CellIndex.NONE) {
+                contents[i] |= seen;
+                return;
+            }
+            index.put(key, size);
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size*2);
+            contents = Arrays.copyOf(contents, size*2);
+        }
+        keys[size] = key;
+        contents[size] = (byte)(content | seen);
+        size++;
+    }
+
+    /**
+     * Add every cell of another buffer, in order
+     */
+    void addAll(CellBuffer other){
+        for (int i = 0; i < other.size; i++) {
+            long key = other.keys[i];
+            int content = other.content(i);
+            add(CellIndex.keyX(key), CellIndex.keyY(key), content);
+            if (other.wallSeen(i) && content != TileGrid.WALL)
+                add(CellIndex.keyX(key), CellIndex.keyY(key), TileGrid.WALL);
+        }
+    }
+
+    /**
+     * Remove every cell, keeping the allocated arrays
+     */
+    void clear(){
+        size = 0;
+        if (index != null)
+            index.clear();
+    }
+}
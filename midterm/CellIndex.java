@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing hash index from packed grid coordinates to integer ids.
+ *	Keys are the x and y coordinates packed into a single long, so lookups
+ *	never box or allocate.
+ */
+class CellIndex {
+
+    /**
+     * Value returned by get when a key is not in the index
+     */
+    static final int NONE = -1;
+
+    /**
+     * Packed keys, only meaningful where the matching value is not NONE
+     */
+    private long[] keys;
+
+    /**
+     * Ids bound to each key, NONE for free slots
+     */
+    private int[] values;
+
+    /**
+     * Capacity minus one, capacity is always a power of two
+     */
+    private int mask;
+
+    /**
+     * Number of keys in the index
+     */
+    private int size;
+
+    /**
+     * Constructor initializes variables
+     */
+    CellIndex(int capacity){
+        int n = 16;
+        while (n < capacity*2)
+            n <<= 1;
+        this.keys = new long[n];
+        this.values = new int[n];
+        this.mask = n-1;
+        this.size = 0;
+        Arrays.fill(values, NONE);
+    }
+
+    /**
+     * Pack a pair of coordinates into one key
+     */
+    static long key(int x, int y){
+        return ((long)x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Unpack the x coordinate of a key
+     */
+    static int keyX(long key){
+        return (int)(key >> 32);
+    }
+
+    /**
+     * Unpack the y coordinate of a key
+     */
+    static int keyY(long key){
+        return (int)key;
+    }
+
+    /**
+     * Accessor method for number of keys
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * Return the id bound to the passed in coordinates, or NONE
+     */
+    int get(int x, int y){
+        return get(key(x, y));
+    }
+
+    /**
+     * Return the id bound to the passed in key, or NONE
+     */
+    int get(long key){
+        int slot = slot(key);
+        while (values[slot] != NONE) {
+            if (keys[slot] == key)
+                return values[slot];
+            slot = (slot+1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Bind the key to the passed in id, replacing any previous binding
+     */
+    void put(long key, int id){
+        if ((size+1)*2 > keys.length)
+            grow();
+        int slot = slot(key);
+        while (values[slot] != NONE) {
+            if (keys[slot] == key) {
+                values[slot] = id;
+                return;
+            }
+            slot = (slot+1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = id;
+        size++;
+    }
+
+    /**
+     * Remove every key from the index, keeping the allocated tables
+     */
+    void clear(){
+        if (size > 0) {
+            Arrays.fill(values, NONE);
+            size = 0;
+        }
+    }
+
+    /**
+     * Double the table and re-insert every key
+     */
+    private void grow(){
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length*2];
+        values = new int[oldValues.length*2];
+        mask = keys.length-1;
+        Arrays.fill(values, NONE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NONE) {
+                int slot = slot(oldKeys[i]);
+                while (values[slot] != NONE)
+                    slot = (slot+1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Home slot of a key, scrambled so neighbouring cells spread out
+     */
+    private int slot(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key & mask;
+    }
+}
@@ -0,0 +1,319 @@
+import java.util.*;
+
+/**
+ * Incremental planner based on D* Lite. The search runs backwards from the
+ *	goal, so the distance of every cell to the goal survives between plans.
+ *	The graph reports every changed cell, and the next plan only repairs
+ *	the cells whose step costs those changes could affect, rather than
+ *	searching again from scratch. Step costs are the same as in
+ *	PathSearch.a_star, so the paths found cost the same.
+ */
+class DStarLite implements Graph.Listener {
+
+    /**
+     * Distance used for cells that cannot reach the goal
+     */
+    private static final int INFINITY = Integer.MAX_VALUE/2;
+
+    /**
+     * Graph being planned over
+     */
+    private Graph room;
+
+    /**
+     * Cells whose distance to the goal is not settled, ordered by key
+     */
+    private IndexedHeap open;
+
+    /**
+     * Distance to the goal of each cell, and the one step lookahead of it
+     */
+    private int[] g_score;
+    private int[] rhs;
+
+    /**
+     * Cells reported changed since the last plan, one bit per id, and the
+     *	same ids in the order they were reported
+     */
+    private long[] pending;
+    private int[] changes;
+    private int num_changes;
+
+    /**
+     * Goal of the current search, NONE if there is no search to repair
+     */
+    private int goal_id;
+
+    /**
+     * Start of the last plan, and the sum of the heuristic distances the
+     *	start has moved since the search began
+     */
+    private int last_start;
+    private int km;
+
+    /**
+     * Number of cells expanded by the last plan
+     */
+    private int expanded;
+
+    /**
+     * Constructor initializes variables and starts listening to the graph
+     */
+    DStarLite(Graph room){
+        this.room = room;
+        this.open = new IndexedHeap(1024);
+        this.g_score = new int[1024];
+        this.rhs = new int[1024];
+        Arrays.fill(g_score, INFINITY);
+        Arrays.fill(rhs, INFINITY);
+        this.pending = new long[16];
+        this.changes = new int[64];
+        this.num_changes = 0;
+        this.goal_id = CellIndex.NONE;
+        room.addListener(this);
+    }
+
+    /**
+     * Accessor method for the number of cells expanded by the last plan
+     */
+    int expanded(){
+        return expanded;
+    }
+
+    /**
+     * Note a changed cell, to be repaired on the next plan
+     */
+    public void cellChanged(int id){
+        if (goal_id == CellIndex.NONE)
+            return;
+        ensureCapacity(id+1);
+        if ((pending[id >>> 6] & (1L << id)) != 0)
+            return;
+        pending[id >>> 6] |= 1L << id;
+        if (num_changes == changes.length)
+            changes = Arrays.copyOf(changes, num_changes*2);
+        changes[num_changes++] = id;
+    }
+
+    /**
+     * Find a path from start to goal. If the goal is the same as in the
+     *	last plan, the previous search is repaired instead of repeated.
+     */
+    Stack<Cell> plan(Cell start, Cell goal){
+        expanded = 0;
+        if (start.equals(goal)){
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int start_id = room.idOf(start);
+        int target = room.idOf(goal);
+        if (start_id == CellIndex.NONE || target == CellIndex.NONE)
+            return null;
+        ensureCapacity(room.V());
+
+        if (target != goal_id){
+            last_start = start_id;
+            reset(target);
+        }
+        else {
+            km += heuristic(last_start, start_id);
+            last_start = start_id;
+            repair();
+        }
+
+        computeShortestPath();
+        if (g_score[start_id] >= INFINITY)
+            return null;
+        return extract_path(start_id, start, goal);
+    }
+
+    /**
+     * Drop the previous search and start a new one towards the passed in
+     *	goal
+     */
+    private void reset(int target){
+        open.clear();
+        Arrays.fill(g_score, INFINITY);
+        Arrays.fill(rhs, INFINITY);
+        clearChanges();
+        goal_id = target;
+        km = 0;
+        rhs[target] = 0;
+        open.push(target, key(target));
+    }
+
+    /**
+     * Update every cell whose one step lookahead may depend on a changed
+     *	cell. A change alters the cell's own edges and the cost of stepping
+     *	onto it, and the graph reports every cell whose step cost changed,
+     *	so the cell and its neighbours are all that need updating.
+     */
+    private void repair(){
+        for (int i = 0; i < num_changes; i++){
+            int id = changes[i];
+            updateVertex(id);
+            for (int dir = 0; dir < 4; dir++){
+                int n = room.neighborId(id, dir);
+                if (n != CellIndex.NONE)
+                    updateVertex(n);
+            }
+        }
+        clearChanges();
+    }
+
+    /**
+     * Expand cells until the start's distance to the goal is settled
+     */
+    private void computeShortestPath(){
+        while (!open.isEmpty() &&
+               (open.peekKey() < key(last_start) ||
+                rhs[last_start] != g_score[last_start])){
+            int u = open.peek();
+            long k_old = open.peekKey();
+            long k_new = key(u);
+            expanded++;
+            if (k_old < k_new){
+                open.push(u, k_new);
+            }
+            else if (g_score[u] > rhs[u]){
+                g_score[u] = rhs[u];
+                open.remove(u);
+                updatePredecessors(u);
+            }
+            else {
+                g_score[u] = INFINITY;
+                updateVertex(u);
+                updatePredecessors(u);
+            }
+        }
+    }
+
+    /**
+     * Update every cell that can step onto the passed in cell
+     */
+    private void updatePredecessors(int id){
+        if (room.getCell(id).isWall())
+            return;
+        int mask = room.edgeMask(id);
+        for (int dir = 0; dir < 4; dir++){
+            if ((mask & (1 << dir)) != 0)
+                updateVertex(room.neighborId(id, dir));
+        }
+    }
+
+    /**
+     * Recompute the one step lookahead of a cell and put it on the open
+     *	list if it is no longer consistent
+     */
+    private void updateVertex(int id){
+        if (id != goal_id){
+            int best = INFINITY;
+            int mask = room.edgeMask(id);
+            for (int dir = 0; dir < 4; dir++){
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int n = room.neighborId(id, dir);
+                int c = cost(n);
+                if (c < INFINITY && g_score[n] < INFINITY)
+                    best = Math.min(best, c + g_score[n]);
+            }
+            rhs[id] = best;
+        }
+        if (g_score[id] != rhs[id])
+            open.push(id, key(id));
+        else
+            open.remove(id);
+    }
+
+    /**
+     * Cost of stepping onto a cell, the same as in PathSearch.a_star, with
+     *	walls costing INFINITY
+     */
+    private int cost(int id){
+        if (room.getCell(id).isWall())
+            return INFINITY;
+        return room.stepCost(id);
+    }
+
+    /**
+     * Manhattan distance between two cells, which never overestimates the
+     *	cost of a path between them
+     */
+    private int heuristic(int a, int b){
+        return room.getCell(a).heuristic(room.getCell(b));
+    }
+
+    /**
+     * Open list key of a cell, ordered by the estimated length of a path
+     *	through it and then by its distance to the goal
+     */
+    private long key(int id){
+        int k2 = Math.min(g_score[id], rhs[id]);
+        int k1 = k2 >= INFINITY ? INFINITY : k2 + heuristic(last_start, id) + km;
+        return ((long)k1 << 32) | k2;
+    }
+
+    /**
+     * Walk from the start to the goal, always stepping to the neighbour
+     *	that is closest to the goal. The start and goal are the cells that
+     *	were passed in.
+     */
+    private Stack<Cell> extract_path(int start_id, Cell start, Cell goal){
+        ArrayList<Cell> forward = new ArrayList<Cell>();
+        forward.add(start);
+        int current = start_id;
+        while (current != goal_id){
+            int next = CellIndex.NONE;
+            int best = INFINITY;
+            int mask = room.edgeMask(current);
+            for (int dir = 0; dir < 4; dir++){
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int n = room.neighborId(current, dir);
+                int c = cost(n);
+                if (c < INFINITY && g_score[n] < INFINITY &&
+                    c + g_score[n] < best){
+                    best = c + g_score[n];
+                    next = n;
+                }
+            }
+            if (next == CellIndex.NONE || forward.size() > room.V())
+                return null;
+            current = next;
+            forward.add(current == goal_id ? goal : room.getCell(current));
+        }
+        Stack<Cell> total_path = new Stack<Cell>();
+        for (int i = forward.size()-1; i >= 0; i--)
+            total_path.push(forward.get(i));
+        return total_path;
+    }
+
+    /**
+     * Forget every reported change
+     */
+    private void clearChanges(){
+        for (int i = 0; i < num_changes; i++)
+            pending[changes[i] >>> 6] &= ~(1L << changes[i]);
+        num_changes = 0;
+    }
+
+    /**
+     * Make room for ids below the passed in capacity. New cells start out
+     *	unable to reach the goal.
+     */
+    private void ensureCapacity(int capacity){
+        open.ensureCapacity(capacity);
+        if (g_score.length < capacity){
+            int old = g_score.length;
+            int n = Math.max(capacity, old*2);
+            g_score = Arrays.copyOf(g_score, n);
+            rhs = Arrays.copyOf(rhs, n);
+            Arrays.fill(g_score, old, n, INFINITY);
+            Arrays.fill(rhs, old, n, INFINITY);
+        }
+        int words = (capacity + 63) >>> 6;
+        if (pending.length < words)
+            pending = Arrays.copyOf(pending, Math.max(words, pending.length*2));
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.Arrays;
+
+/**
+ * Reads the replies of the quagent server in a single pass over their
+ *	characters. Each reply is classified by its keyword and its numbers are
+ *	decoded in place into buffers that are reused from one reply to the
+ *	next, so no tokens, substrings or regular expressions are made. Tokens
+ *	are separated by whitespace and parentheses, as in the replies
+ *
+ *	CMD do getwhere x y z roll pitch yaw velocity
+ *	CMD ask rays n (1 name x y z) (2 name x y z) ...
+ *	CMD ask radius r n (name x y z) ...
+ *	TELL STOPPED distance ...
+ *
+ *	Ray and item positions are relative to the quagent.
+ */
+class EventParser {
+
+    /**
+     * Kinds of replies
+     */
+    static final int OTHER = 0;
+    static final int GETWHERE = 1;
+    static final int RAYS = 2;
+    static final int RADIUS = 3;
+    static final int STOPPED = 4;
+    static final int TURNBY = 5;
+
+    /**
+     * Number of leading tokens searched for the keyword of a reply
+     */
+    private static final int HEADER = 3;
+
+    /**
+     * Powers of ten that are exact as doubles
+     */
+    private static final double[] POWERS = new double[23];
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++)
+            POWERS[i] = POWERS[i-1]*10;
+    }
+
+    /**
+     * Position and orientation from the last getwhere, in the order x, y,
+     *	z, roll, pitch, yaw, velocity
+     */
+    final double[] where = new double[7];
+
+    /**
+     * Where each ray of the last scan hit, and what it hit
+     */
+    double[] ray_x = new double[16];
+    double[] ray_y = new double[16];
+    Cell.Contents[] ray_hit = new Cell.Contents[16];
+    int num_rays;
+
+    /**
+     * Position of each item of the last radius reply, and whether it is
+     *	tofu
+     */
+    double[] item_x = new double[16];
+    double[] item_y = new double[16];
+    boolean[] item_tofu = new boolean[16];
+    int num_items;
+
+    /**
+     * Distance of the last STOPPED
+     */
+    double distance;
+
+    /**
+     * Reply being read, and the bounds of the current token
+     */
+    private String text;
+    private int pos;
+    private int start, end;
+
+    /**
+     * Classify a reply and decode its numbers into the buffers. Returns
+     *	the kind of reply.
+     */
+    int parse(String e){
+        text = e;
+        pos = 0;
+        int kind = OTHER;
+        for (int i = 0; i < HEADER && kind == OTHER && next(); i++) {
+            if (is("getwhere"))
+                kind = GETWHERE;
+            else if (is("rays"))
+                kind = RAYS;
+            else if (is("radius"))
+                kind = RADIUS;
+            else if (is("STOPPED"))
+                kind = STOPPED;
+            else if (is("turnby"))
+                kind = TURNBY;
+        }
+        switch (kind) {
+            case GETWHERE:
+                for (int i = 0; i < where.length && next(); i++)
+                    where[i] = number();
+                break;
+            case RAYS:
+                readRays();
+                break;
+            case RADIUS:
+                readItems();
+                break;
+            case STOPPED:
+                distance = next() ? number() : 0;
+                break;
+        }
+        text = null;
+        return kind;
+    }
+
+    /**
+     * Read the rays of a scan, each an index, a name and a position
+     */
+    private void readRays(){
+        num_rays = 0;
+        next();
+        while (next()) {
+            if (!next())
+                break;
+            Cell.Contents hit = Cell.Contents.EMPTY;
+            if (is("worldspawn") || is("world_spawn"))
+                hit = Cell.Contents.WALL;
+            else if (is("TOFU"))
+                hit = Cell.Contents.TOFU;
+            if (!next())
+                break;
+            double rx = number();
+            if (!next())
+                break;
+            double ry = number();
+            if (!next())
+                break;
+            if (num_rays == ray_x.length) {
+                ray_x = Arrays.copyOf(ray_x, num_rays*2);
+                ray_y = Arrays.copyOf(ray_y, num_rays*2);
+                ray_hit = Arrays.copyOf(ray_hit, num_rays*2);
+            }
+            ray_x[num_rays] = rx;
+            ray_y[num_rays] = ry;
+            ray_hit[num_rays] = hit;
+            num_rays++;
+        }
+    }
+
+    /**
+     * Read the items of a radius reply, each a name and a position
+     */
+    private void readItems(){
+        num_items = 0;
+        if (!next() || !next())
+            return;
+        int n = (int)number();
+        for (int i = 0; i < n && next(); i++) {
+            boolean tofu = is("tofu");
+            if (!next())
+                break;
+            double ix = number();
+            if (!next())
+                break;
+            double iy = number();
+            if (!next())
+                break;
+            if (num_items == item_x.length) {
+                item_x = Arrays.copyOf(item_x, num_items*2);
+                item_y = Arrays.copyOf(item_y, num_items*2);
+                item_tofu = Arrays.copyOf(item_tofu, num_items*2);
+            }
+            item_x[num_items] = ix;
+            item_y[num_items] = iy;
+            item_tofu[num_items] = tofu;
+            num_items++;
+        }
+    }
+
+    /**
+     * Move to the next token. Returns false if there is none.
+     */
+    private boolean next(){
+        int n = text.length();
+        while (pos < n && separator(text.charAt(pos)))
+            pos++;
+        if (pos == n)
+            return false;
+        start = pos;
+        while (pos < n && !separator(text.charAt(pos)))
+            pos++;
+        end = pos;
+        return true;
+    }
+
+    /**
+     * Returns true if the character separates tokens
+     */
+    private static boolean separator(char c){
+        return c == '(' || c == ')' || Character.isWhitespace(c);
+    }
+
+    /**
+     * Returns true if the current token is the passed in word
+     */
+    private boolean is(String word){
+        return end - start == word.length() &&
+               text.regionMatches(start, word, 0, word.length());
+    }
+
+    /**
+     * Decode the current token as a decimal number, with an optional sign,
+     *	fraction and exponent. Digits beyond what a long holds only shift
+     *	the scale. Anything else ends the number.
+     */
+    private double number(){
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+            negative = text.charAt(i++) == '-';
+        long mantissa = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && !fraction) {
+                fraction = true;
+            }
+            else if (c >= '0' && c <= '9') {
+                if (mantissa < Long.MAX_VALUE/10 - 9) {
+                    mantissa = mantissa*10 + (c - '0');
+                    if (fraction)
+                        scale--;
+                }
+                else if (!fraction) {
+                    scale++;
+                }
+            }
+            else {
+                break;
+            }
+        }
+        if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            boolean down = false;
+            if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+                down = text.charAt(i++) == '-';
+            int exponent = 0;
+            for (; i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++)
+                exponent = Math.min(exponent*10 + (text.charAt(i) - '0'), 1000);
+            scale += down ? -exponent : exponent;
+        }
+        double value = mantissa;
+        if (scale < 0)
+            value = -scale < POWERS.length ? value/POWERS[-scale]
+                                           : value/Math.pow(10, -scale);
+        else if (scale > 0)
+            value = scale < POWERS.length ? value*POWERS[scale]
+                                          : value*Math.pow(10, scale);
+        return negative ? -value : value;
+    }
+}
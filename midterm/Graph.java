@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.*;
 
 /**
@@ -17,14 +18,37 @@ class Graph{
     private ArrayList<Cell> vertices;
     
     /**
-     * Hash map of cells, each bound to an array list of neighboring cells
+     * Index from cell coordinates to positions in the vertex list
+     */
+    private CellIndex index;
+    
+    /**
+     * Hash map of cells, each bound to an array list of neighboring cells.
+     *	Null when the graph uses the tiled backend.
      */
     private HashMap<Cell, ArrayList<Cell>> edges;
     
     /**
-     * Array list of unexplored vertices
+     * Scratch buffers for rasterizing lines and scans
+     */
+    private CellBuffer line;
+    private CellBuffer scan;
+    
+    /**
+     * Occupancy grid holding the contents and edge mask of every cell
      */
-    private ArrayList<Cell> unexplored;
+    private TileGrid grid;
+    
+    /**
+     * Distance from every cell to the nearest wall
+     */
+    private WallDistance clearance;
+    
+    /**
+     * True if neighbours are served from the grid's edge masks rather than
+     *	the edge lists
+     */
+    private boolean tiled;
     
     /**
      * Number of edges
@@ -36,16 +60,68 @@ class Graph{
      */
     private int V;
     
+    /**
+     * Objects told about every change to a cell's contents or edges
+     */
+    private ArrayList<Listener> listeners;
+    
+    /**
+     * Receives the id of every cell that is added, becomes a wall, or gains
+     *	or loses an edge, so planners can update their state incrementally
+     */
+    interface Listener {
+        void cellChanged(int id);
+    }
+    
     /**
      * Constructor initializes variables
      */
     public Graph(int cell_size){
+        this(cell_size, false);
+    }
+    
+    /**
+     * Constructor initializes variables. If tiled is true, edges are only
+     *	kept as 4-bit masks in the occupancy grid, which allows at most the
+     *	four axis aligned neighbours per cell.
+     */
+    public Graph(int cell_size, boolean tiled){
         this.cell_size = cell_size;
+        this.tiled = tiled;
         this.vertices = new ArrayList<Cell>();
-        this.unexplored = new ArrayList<Cell>();
-        this.edges = new HashMap<Cell, ArrayList<Cell>>();
+        this.index = new CellIndex(1024);
+        this.grid = new TileGrid();
+        this.clearance = new WallDistance(1024);
+        this.line = new CellBuffer(64, false);
+        this.scan = new CellBuffer(1024, true);
+        this.edges = tiled ? null : new HashMap<Cell, ArrayList<Cell>>();
         this.E = 0;
         this.V = 0;
+        this.listeners = new ArrayList<Listener>();
+    }
+    
+    /**
+     * Register an object to be told about changes to cells. Planners may
+     *	register while others read the graph, so this is synchronized.
+     */
+    public synchronized void addListener(Listener l){
+        listeners.add(l);
+    }
+    
+    /**
+     * Stop telling the passed in object about changes to cells
+     */
+    public synchronized void removeListener(Listener l){
+        listeners.remove(l);
+    }
+    
+    /**
+     * Tell every listener that the cell with the passed in id changed
+     */
+    private void changed(int id){
+        for(int i = 0; i < listeners.size(); i++){
+            listeners.get(i).cellChanged(id);
+        }
     }
     
     /**
@@ -63,17 +139,20 @@ class Graph{
     }
     
     public int numUnexplored() {
-        return unexplored.size();
+        return grid.count(TileGrid.UNEXPLORED);
     }
     
     /**
      * Determines whether the graph contains the passed in cell
      */
     public boolean contains(Cell v){
-        return vertices.contains(v);
+        return index.get(v.x, v.y) != CellIndex.NONE;
     }
     
     public boolean neighborIsWall(Cell v){
+        if(tiled){
+            return grid.neighborIsWall(pointToGrid(v.x), pointToGrid(v.y));
+        }
         for(Cell neighbor : getNeighbors(v)){
             if(neighbor.isWall()){
                 return true;
@@ -86,32 +165,92 @@ class Graph{
      * Add the passed in cell to the graph.
      */
     public void addVertex(Cell v){
+        int gx = pointToGrid(v.x), gy = pointToGrid(v.y);
         if(!this.contains(v)){
-            vertices.add(v);
-            if(!v.isWall()){
-                unexplored.add(v);
-            }
-            edges.put(v, new ArrayList<Cell>());
-            V++;
+            insert(v);
+        }
+        for(int dir = 0; dir < 4; dir++){
+            connect(gx, gy, dir);
         }
-        addEdge(v, new Cell(v.x-cell_size, v.y));
-        //addEdge(v, new Cell(v.x-cell_size, v.y-cell_size));
-        //addEdge(v, new Cell(v.x-cell_size, v.y+cell_size));
-        
-        addEdge(v, new Cell(v.x, v.y-cell_size));
-        
-        addEdge(v, new Cell(v.x, v.y+cell_size));
-        
-        addEdge(v, new Cell(v.x+cell_size, v.y));
-        //addEdge(v, new Cell(v.x+cell_size, v.y-cell_size));
-        //addEdge(v, new Cell(v.x+cell_size, v.y+cell_size));
         
         if(v.isWall()){
-            vertices.get(vertices.indexOf(v)).setContents(Cell.Contents.WALL);
+            markWall(gx, gy);
             //disconnectWalls();
         }
     }
     
+    /**
+     * Add the passed in cell without connecting it to anything and with the
+     *	passed in explored state, for restoring a saved map whose edges are
+     *	added afterwards
+     */
+    void restoreVertex(Cell v, boolean unexplored){
+        if(!this.contains(v)){
+            insert(v);
+        }
+        grid.setBit(TileGrid.UNEXPLORED, pointToGrid(v.x), pointToGrid(v.y),
+                    unexplored);
+    }
+    
+    /**
+     * Store a new cell, without connecting it to anything
+     */
+    private void insert(Cell v){
+        int gx = pointToGrid(v.x), gy = pointToGrid(v.y);
+        index.put(CellIndex.key(v.x, v.y), vertices.size());
+        vertices.add(v);
+        grid.setContent(gx, gy, TileGrid.encode(v.content()));
+        if(!v.isWall()){
+            grid.setBit(TileGrid.UNEXPLORED, gx, gy, true);
+        }
+        updateFrontier(gx, gy);
+        if(!tiled){
+            edges.put(v, new ArrayList<Cell>());
+        }
+        V++;
+        changed(V-1);
+        clearance.insert(this, V-1, v.isWall());
+        clearanceChanged();
+    }
+    
+    /**
+     * Connect the cell at the passed in grid location to its neighbour in
+     *	the passed in direction, if both exist
+     */
+    private void connect(int gx, int gy, int dir){
+        Cell w = getCellAtIndex(gx, gy);
+        Cell v = getCellAtIndex(gx + TileGrid.DX[dir], gy + TileGrid.DY[dir]);
+        if(w != null && v != null){
+            addEdge(w, v);
+        }
+    }
+    
+    /**
+     * Turn the cell at the passed in grid location into a wall
+     */
+    private void markWall(int gx, int gy){
+        boolean was_wall = grid.content(gx, gy) == TileGrid.WALL;
+        getCellAtIndex(gx, gy).setContents(Cell.Contents.WALL);
+        grid.setContent(gx, gy, TileGrid.WALL);
+        updateFrontier(gx, gy);
+        if(!was_wall){
+            int id = index.get(gridToPoint(gx), gridToPoint(gy));
+            changed(id);
+            clearance.markWall(this, id);
+            clearanceChanged();
+        }
+    }
+    
+    /**
+     * Tell every listener about the cells whose distance to the nearest
+     *	wall dropped in the last update, since their step cost changed
+     */
+    private void clearanceChanged(){
+        for(int i = 0; i < clearance.numChanged(); i++){
+            changed(clearance.changed(i));
+        }
+    }
+    
     private void disconnectWalls(){
         for(Cell v : vertices){
             if(v.isWall()){
@@ -145,10 +284,167 @@ class Graph{
      * Adds a line according to Bresenham's algorithm
      */
     public void addLine(Cell c1, Cell c2){
-        int y0 = pointToGrid(c1.y);
-        int y1 = pointToGrid(c2.y);
-        int x0 = pointToGrid(c1.x);
-        int x1 = pointToGrid(c2.x);
+        line.clear();
+        rasterize(c1.x, c1.y, c2.x, c2.y, line);
+        for (int i = 0; i < line.size(); i++) {
+            long key = line.key(i);
+            addVertex(new Cell(gridToPoint(CellIndex.keyX(key)),
+                               gridToPoint(CellIndex.keyY(key))));
+        }
+    }
+    
+    /**
+     * Add every cell of a ray scan taken from origin. Ray i hit the cell at
+     *	hit_x[i], hit_y[i] with the passed in contents. The result is the
+     *	same as adding each hit followed by the line to it, but every ray is
+     *	rasterized into one deduplicated set of cells first and then the
+     *	vertices and edges are committed in a single pass.
+     */
+    public void ingestScan(Cell origin, int[] hit_x, int[] hit_y,
+                           Cell.Contents[] contents, int count){
+        scan.clear();
+        rasterizeScan(origin, hit_x, hit_y, contents, count, scan);
+        commitScan(scan);
+    }
+    
+    /**
+     * Same as ingestScan, but the rays are rasterized in parallel on the
+     *	passed in pool
+     */
+    public void ingestScan(Cell origin, int[] hit_x, int[] hit_y,
+                           Cell.Contents[] contents, int count,
+                           ForkJoinPool pool){
+        commitScan(rasterizeScan(origin, hit_x, hit_y, contents, count, pool));
+    }
+    
+    /**
+     * Rasterize every ray of a scan into the passed in unique buffer, the
+     *	first half of ingestScan. It does not touch the graph, so it may run
+     *	while others use it.
+     */
+    public static void rasterizeScan(Cell origin, int[] hit_x, int[] hit_y,
+                                     Cell.Contents[] contents, int count,
+                                     CellBuffer out){
+        for (int i = 0; i < count; i++) {
+            out.add(pointToGrid(hit_x[i]), pointToGrid(hit_y[i]),
+                    TileGrid.encode(contents[i]));
+            rasterize(origin.x, origin.y, hit_x[i], hit_y[i], out);
+        }
+    }
+    
+    /**
+     * Same as rasterizeScan, but in parallel on the passed in pool. Each
+     *	task rasterizes a run of rays into its own buffer, and the buffers
+     *	are merged in ray order, so the result is exactly the sequential one.
+     */
+    public static CellBuffer rasterizeScan(Cell origin, int[] hit_x, int[] hit_y,
+                                           Cell.Contents[] contents, int count,
+                                           ForkJoinPool pool){
+        return pool.invoke(new ScanTask(origin.x, origin.y,
+                                        hit_x, hit_y, contents, 0, count));
+    }
+    
+    /**
+     * Rasterizes a run of rays, splitting it in half until it is short
+     *	enough to do directly
+     */
+    private static class ScanTask extends RecursiveTask<CellBuffer> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /**
+         * Rays per task below which the run is not split any further
+         */
+        private static final int RAYS_PER_TASK = 16;
+        
+        /**
+         * Where the scan was taken from
+         */
+        private final int origin_x, origin_y;
+        
+        /**
+         * Hits and contents of every ray in the scan
+         */
+        private final int[] hit_x, hit_y;
+        private final Cell.Contents[] contents;
+        
+        /**
+         * The run of rays handled by this task, from inclusive to exclusive
+         */
+        private final int from, to;
+        
+        /**
+         * Constructor initializes variables
+         */
+        ScanTask(int origin_x, int origin_y, int[] hit_x, int[] hit_y,
+                 Cell.Contents[] contents, int from, int to){
+            this.origin_x = origin_x;
+            this.origin_y = origin_y;
+            this.hit_x = hit_x;
+            this.hit_y = hit_y;
+            this.contents = contents;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected CellBuffer compute(){
+            if (to - from <= RAYS_PER_TASK) {
+                CellBuffer cells = new CellBuffer(64*(to - from), true);
+                for (int i = from; i < to; i++) {
+                    cells.add(pointToGrid(hit_x[i]), pointToGrid(hit_y[i]),
+                              TileGrid.encode(contents[i]));
+                    rasterize(origin_x, origin_y, hit_x[i], hit_y[i], cells);
+                }
+                return cells;
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(origin_x, origin_y, hit_x, hit_y,
+                                         contents, from, mid);
+            ScanTask right = new ScanTask(origin_x, origin_y, hit_x, hit_y,
+                                          contents, mid, to);
+            left.fork();
+            CellBuffer cells = right.compute();
+            // The left run came first, so its sightings go first
+            CellBuffer merged = left.join();
+            merged.addAll(cells);
+            return merged;
+        }
+    }
+    
+    /**
+     * Add every cell of a rasterized scan to the graph, as if addVertex
+     *	were called for each sighting in order, the second half of ingestScan
+     */
+    public void commitScan(CellBuffer cells){
+        for (int i = 0; i < cells.size(); i++) {
+            int gx = CellIndex.keyX(cells.key(i)), gy = CellIndex.keyY(cells.key(i));
+            if (getCellAtIndex(gx, gy) == null) {
+                insert(new Cell(gridToPoint(gx), gridToPoint(gy),
+                                TileGrid.decode(cells.content(i))));
+            }
+            if (cells.wallSeen(i)) {
+                markWall(gx, gy);
+            }
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            int gx = CellIndex.keyX(cells.key(i)), gy = CellIndex.keyY(cells.key(i));
+            for (int dir = 0; dir < 4; dir++) {
+                connect(gx, gy, dir);
+            }
+        }
+    }
+    
+    /**
+     * Append the grid cells on the line between the passed in points to the
+     *	buffer as empty cells, following Bresenham's algorithm
+     */
+    private static void rasterize(int from_x, int from_y, int to_x, int to_y,
+                                  CellBuffer out){
+        int y0 = pointToGrid(from_y);
+        int y1 = pointToGrid(to_y);
+        int x0 = pointToGrid(from_x);
+        int x1 = pointToGrid(to_x);
         // If slope is outside the range [-1,1], swap x and y
         boolean xy_swap = false;
         if (Math.abs(y1 - y0) > Math.abs(x1 - x0)) {
@@ -177,11 +473,11 @@ class Graph{
         int d = 2*deltay - deltax;
         
         if(xy_swap){
-            addVertex(new Cell(gridToPoint(y0), gridToPoint(x0)));
+            out.add(y0, x0, TileGrid.EMPTY);
             //System.out.println(y0+", "+x0);
         }
         else {
-            addVertex(new Cell(gridToPoint(x0), gridToPoint(y0)));
+            out.add(x0, y0, TileGrid.EMPTY);
             //System.out.println(x0+", "+y0);
         }
         
@@ -192,42 +488,42 @@ class Graph{
                 
                 if(d==1){
                     if(xy_swap){
-                        addVertex(new Cell(gridToPoint(y-1), gridToPoint(x)));
+                        out.add(y-1, x, TileGrid.EMPTY);
                         //System.out.println(y+", "+x);
                     }
                     else {
-                        addVertex(new Cell(gridToPoint(x), gridToPoint(y-1)));
+                        out.add(x, y-1, TileGrid.EMPTY);
                         //System.out.println(x+", "+y);
                     }
                 }
                 else{
                     if(xy_swap){
-                        addVertex(new Cell(gridToPoint(y), gridToPoint(x-1)));
+                        out.add(y, x-1, TileGrid.EMPTY);
                         //System.out.println(y+", "+x);
                     }
                     else {
-                        addVertex(new Cell(gridToPoint(x-1), gridToPoint(y)));
+                        out.add(x-1, y, TileGrid.EMPTY);
                         //System.out.println(x+", "+y);
                     }
                 }
                 
                 if(xy_swap){
-                    addVertex(new Cell(gridToPoint(y), gridToPoint(x)));
+                    out.add(y, x, TileGrid.EMPTY);
                     //System.out.println(y+", "+x);
                 }
                 else {
-                    addVertex(new Cell(gridToPoint(x), gridToPoint(y)));
+                    out.add(x, y, TileGrid.EMPTY);
                     //System.out.println(x+", "+y);
                 }
                 d = d + (2*deltay-2*deltax);
             }
             else{
                 if(xy_swap){
-                    addVertex(new Cell(gridToPoint(y), gridToPoint(x)));
+                    out.add(y, x, TileGrid.EMPTY);
                     //System.out.println(y+", "+x);
                 }
                 else {
-                    addVertex(new Cell(gridToPoint(x), gridToPoint(y)));
+                    out.add(x, y, TileGrid.EMPTY);
                     //System.out.println(x+", "+y);
                 }
                 d = d + (2*deltay);
@@ -237,121 +533,226 @@ class Graph{
     }
     
     /**
-     * Marks a cell as being explored by removing it from the
-     * unexplored list
+     * Marks a cell as being explored by clearing its unexplored bit
      */
     public void markExplored(Cell v){
-        unexplored.remove(v);
+        grid.setBit(TileGrid.UNEXPLORED, pointToGrid(v.x), pointToGrid(v.y),
+                    false);
     }
     
+    /**
+     * Marks every cell closer than radius to cell v as explored
+     */
     public void markExplored(Cell v, int radius) {
-        ArrayList<Cell> toMark = new ArrayList<Cell>();
-        for (Cell u : unexplored) {
-            if (v.distance(u) < radius)
-                toMark.add(u);
-        }
-        for (Cell m : toMark) {
-            markExplored(m);
-        }
+        grid.clearDisc(TileGrid.UNEXPLORED, pointToGrid(v.x), pointToGrid(v.y),
+                       (double)radius/cell_size);
     }
     
+    /**
+     * Marks every cell with x0 <= x < x1 and y0 <= y < y1 as explored
+     */
+    public void markExplored(int x0, int y0, int x1, int y1) {
+        grid.clearRect(TileGrid.UNEXPLORED, pointToGrid(x0), pointToGrid(y0),
+                       pointToGrid(x1)-1, pointToGrid(y1)-1);
+    }
     
     /**
-     * Return closest, most unexplored cell
+     * Returns the number of unexplored cells closer than radius to cell v
+     */
+    public int countUnexplored(Cell v, int radius) {
+        return grid.countDisc(TileGrid.UNEXPLORED, pointToGrid(v.x),
+                              pointToGrid(v.y), (double)radius/cell_size);
+    }
+    
+    /**
+     * Returns the number of unexplored cells with x0 <= x < x1 and
+     *	y0 <= y < y1
+     */
+    public int countUnexplored(int x0, int y0, int x1, int y1) {
+        return grid.countRect(TileGrid.UNEXPLORED, pointToGrid(x0),
+                              pointToGrid(y0), pointToGrid(x1)-1,
+                              pointToGrid(y1)-1);
+    }
+    
+    /**
+     * Return the unexplored cell with the most unexplored cells around it,
+     *	breaking ties by distance to cell v
      */
     public Cell getIsolatedUnexplored(Cell v, int radius){
-        Cell ret = null;
-        int nearby_unexplored = 0;
-        double distance = Double.MAX_VALUE;
-        for (Cell u : unexplored) {
-            int nearby_compare = 0;
-            for (Cell u2 : unexplored){
-                if (u.distance(u2) < radius)
-                    nearby_compare++;
-            }
-            if(nearby_compare > nearby_unexplored && v.distance(u) < distance){
-                nearby_unexplored = nearby_compare;
-                distance = v.distance(u);
-                ret = u;
-            }
-        }
-        return ret;
+        return densest(TileGrid.UNEXPLORED, v, radius);
     }
     
     /**
-     * Return closest cell with the most unseen in its neighborhood
+     * Return the frontier cell with the most frontier cells around it,
+     *	breaking ties by distance to cell v. Only the frontier is scored, so
+     *	the cost follows the size of the frontier rather than the map.
      */
     public Cell getIsolatedUnseen(Cell v, int radius){
-        Cell ret = null;
-        int nearby_unseen = 0;
-        for (Cell c : vertices) {
-            int nearby_compare = 0;
-            if (!c.isWall()) {
-                for (Cell n : vertices){
-                    if (c.distance(n) < radius && !n.isWall() &&
-                        getNeighbors(n).size() < 4)
-                        nearby_compare++;
-                }
-                if(nearby_compare > nearby_unseen){
-                    nearby_unseen = nearby_compare;
-                    ret = c;
+        return densest(TileGrid.FRONTIER, v, radius);
+    }
+    
+    /**
+     * Returns the number of frontier cells
+     */
+    public int numFrontier() {
+        return grid.count(TileGrid.FRONTIER);
+    }
+    
+    /**
+     * Returns true if the cell is on the frontier
+     */
+    public boolean isFrontier(Cell v) {
+        return grid.getBit(TileGrid.FRONTIER, pointToGrid(v.x),
+                           pointToGrid(v.y));
+    }
+    
+    /**
+     * Return the cell of the passed in layer with the most cells of the
+     *	layer around it, breaking ties by distance to cell v. Density is
+     *	counted over the square window reaching radius in each direction,
+     *	which the grid answers in constant time from its summed area tables.
+     *	Tiles and 8x8 blocks whose whole neighbourhood cannot beat the best
+     *	cell so far are skipped, nearest first among equally promising ones.
+     */
+    private Cell densest(int layer, Cell v, int radius){
+        int reach = (int)Math.ceil((double)radius/cell_size) - 1;
+        int vx = pointToGrid(v.x), vy = pointToGrid(v.y);
+        List<TileGrid.Tile> tiles = grid.tiles();
+        
+        // Bound every tile by the cells of the layer its candidates can see.
+        //  The bound, the tile's closeness to v and its position are packed
+        //  together so the most promising tiles sort last.
+        long[] order = new long[tiles.size()];
+        int full = (2*reach+1)*(2*reach+1);
+        int n = 0;
+        for (int k = 0; k < tiles.size(); k++) {
+            TileGrid.Tile t = tiles.get(k);
+            if (t.counts[layer] == 0)
+                continue;
+            int x0 = t.tx << TileGrid.TILE_SHIFT, y0 = t.ty << TileGrid.TILE_SHIFT;
+            long bound = Math.min(full, grid.countRect(layer,
+                            x0-reach, y0-reach, x0+TileGrid.TILE_MASK+reach,
+                            y0+TileGrid.TILE_MASK+reach));
+            long far = Math.min(distance(vx, vy, x0, y0, x0+TileGrid.TILE_MASK,
+                                y0+TileGrid.TILE_MASK), 0xfffffL);
+            order[n++] = (bound << 40) | ((0xfffffL - far) << 20) | k;
+        }
+        Arrays.sort(order, 0, n);
+        
+        int best = 0;
+        long best_distance = Long.MAX_VALUE;
+        int best_x = 0, best_y = 0;
+        for (int k = n-1; k >= 0; k--) {
+            int bound = (int)(order[k] >>> 40);
+            if (bound < best)
+                break;
+            TileGrid.Tile t = tiles.get((int)(order[k] & 0xfffff));
+            int tx = t.tx << TileGrid.TILE_SHIFT, ty = t.ty << TileGrid.TILE_SHIFT;
+            if (bound == best && distance(vx, vy, tx, ty, tx+TileGrid.TILE_MASK,
+                                  ty+TileGrid.TILE_MASK) >= best_distance)
+                continue;
+            
+            // Windows that fit inside the tile's neighbours are read from
+            //  their summed area tables directly
+            short[][] around = reach <= TileGrid.TILE_SIZE ?
+                grid.neighbourhood(layer, t) : null;
+            int[] rows = t.bits[layer];
+            for (int by = 0; by < TileGrid.TILE_SIZE; by += 8) {
+                for (int bx = 0; bx < TileGrid.TILE_SIZE; bx += 8) {
+                    if (around != null) {
+                        int block = Math.min(full, TileGrid.window(around,
+                                bx-reach, by-reach, bx+7+reach, by+7+reach));
+                        if (block < best || (block == best &&
+                            distance(vx, vy, tx+bx, ty+by, tx+bx+7, ty+by+7)
+                                >= best_distance))
+                            continue;
+                    }
+                    for (int row = by; row < by+8; row++) {
+                        for (int bits = (rows[row] >>> bx) & 0xff; bits != 0;
+                             bits &= bits-1) {
+                            int col = bx + Integer.numberOfTrailingZeros(bits);
+                            int nearby = around != null ?
+                                TileGrid.window(around, col-reach, row-reach,
+                                                col+reach, row+reach) :
+                                grid.countRect(layer,
+                                               tx+col-reach, ty+row-reach,
+                                               tx+col+reach, ty+row+reach);
+                            long distance = distance(vx, vy, tx+col, ty+row,
+                                                     tx+col, ty+row);
+                            if (nearby > best ||
+                                (nearby == best && distance < best_distance)) {
+                                best = nearby;
+                                best_distance = distance;
+                                best_x = tx+col;
+                                best_y = ty+row;
+                            }
+                        }
+                    }
                 }
             }
         }
-        return ret;
+        if (best == 0)
+            return null;
+        return getCellAtIndex(best_x, best_y);
+    }
+    
+    /**
+     * Squared grid distance from a grid location to the nearest point of
+     *	the rectangle between the passed in grid locations, inclusive
+     */
+    private static long distance(int gx, int gy, int x0, int y0, int x1, int y1){
+        long dx = Math.max(Math.max(x0-gx, gx-x1), 0);
+        long dy = Math.max(Math.max(y0-gy, gy-y1), 0);
+        return dx*dx + dy*dy;
     }
     
     /**
      * Returns the unexplored cell farthest from cell v
      */
     public Cell getFarthestUnexplored(Cell v){
-        double distance = 0;
-        Cell ret = null;
-        for(Cell w : unexplored){
-            if(v.distance(w) > distance){
-                distance = v.distance(w);
-                ret = w;
-            }
-        }
-        return ret;
+        long key = grid.farthest(TileGrid.UNEXPLORED, pointToGrid(v.x),
+                                 pointToGrid(v.y));
+        if (key == TileGrid.NOT_FOUND)
+            return null;
+        return getCellAtIndex(CellIndex.keyX(key), CellIndex.keyY(key));
     }
     
     /**
      * Returns the unexplored cell nearest to cell v
      */
     public Cell getNearestUnexplored(Cell v){
-        double distance = Double.MAX_VALUE;
-        Cell ret = null;
-        for(Cell w : unexplored){
-            // Anything within 200 clicks will have been explored
-            //  by the time we reach it
-            if(v.distance(w) <= distance && v.distance(w) >= 200){
-                distance = v.distance(w);
-                ret = w;
-            }
-        }
-        // If nothing was found outside 200 clicks, look outside
-        if (ret == null)
-            for(Cell w : unexplored){
-                if(v.distance(w) <= distance){
-                    distance = v.distance(w);
-                    ret = w;
-                }
-            }
-        return ret;
+        // Anything within 200 clicks will have been explored
+        //  by the time we reach it
+        ArrayList<Cell> nearest = getNearestUnexplored(v, 1, 200);
+        // If nothing was found outside 200 clicks, look inside
+        if (nearest.isEmpty())
+            nearest = getNearestUnexplored(v, 1, 0);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+    
+    /**
+     * Returns up to k unexplored cells nearest to cell v, nearest first,
+     *	skipping any closer than min_distance
+     */
+    public ArrayList<Cell> getNearestUnexplored(Cell v, int k, int min_distance){
+        long size2 = (long)cell_size*cell_size;
+        long min2 = ((long)min_distance*min_distance + size2 - 1)/size2;
+        long[] keys = new long[k];
+        int found = grid.nearest(TileGrid.UNEXPLORED, pointToGrid(v.x),
+                                 pointToGrid(v.y), min2, k, keys);
+        ArrayList<Cell> nearest = new ArrayList<Cell>(found);
+        for (int i = 0; i < found; i++)
+            nearest.add(getCellAtIndex(CellIndex.keyX(keys[i]),
+                                       CellIndex.keyY(keys[i])));
+        return nearest;
     }
     
     /**
      * Returns true if the cell has not been explored
      */
     public boolean isUnexplored(Cell v){
-        boolean isUnexplored = false;
-        for(Cell w : unexplored){
-            if(v.equals(w)){
-                isUnexplored=true;
-            }
-        }
-        return isUnexplored;
+        return grid.getBit(TileGrid.UNEXPLORED, pointToGrid(v.x),
+                           pointToGrid(v.y));
     }
     
     
@@ -362,7 +763,12 @@ class Graph{
         if(this.contains(w) && this.contains(v)){
             w = getCounterpart(w);
             v = getCounterpart(v);
-            E++;
+            if(setGridEdge(w, v, true)){
+                E++;
+            }
+            if(tiled){
+                return;
+            }
             if(!edges.get(w).contains(v)){
                 edges.get(w).add(v);
             }
@@ -377,17 +783,70 @@ class Graph{
      */
     public void removeEdge(Cell w, Cell v){
         if(this.contains(w) && this.contains(v)) {
-            E--;
-            edges.get(w).remove(v);
-            edges.get(v).remove(w);
+            if(setGridEdge(w, v, false)){
+                E--;
+            }
+            if(!tiled){
+                edges.get(w).remove(v);
+                edges.get(v).remove(w);
+            }
+        }
+    }
+    
+    /**
+     * Set or clear the grid edge between two axis aligned neighbours in both
+     *	directions. Returns true if the edge changed.
+     */
+    private boolean setGridEdge(Cell w, Cell v, boolean connected){
+        int wx = pointToGrid(w.x), wy = pointToGrid(w.y);
+        int vx = pointToGrid(v.x), vy = pointToGrid(v.y);
+        int dir = TileGrid.direction(wx, wy, vx, vy);
+        if(dir < 0){
+            return false;
+        }
+        boolean changed = grid.setEdge(wx, wy, dir, connected);
+        grid.setEdge(vx, vy, TileGrid.opposite(dir), connected);
+        if(changed){
+            updateFrontier(wx, wy);
+            updateFrontier(vx, vy);
+            changed(index.get(w.x, w.y));
+            changed(index.get(v.x, v.y));
         }
+        return changed;
+    }
+    
+    /**
+     * A cell is on the frontier if it is not a wall and has fewer than four
+     *	neighbours, meaning some of the cells around it have not been seen
+     */
+    private void updateFrontier(int gx, int gy){
+        int content = grid.content(gx, gy);
+        boolean frontier = content != TileGrid.NONE &&
+                           content != TileGrid.WALL &&
+                           Integer.bitCount(grid.edges(gx, gy)) < 4;
+        grid.setBit(TileGrid.FRONTIER, gx, gy, frontier);
     }
     
     /**
      * Returns the neighbors of the passed in cell, as defined by the its edges
      */
     public ArrayList<Cell> getNeighbors(Cell v){
-        return edges.get(v);
+        if(!tiled){
+            return edges.get(v);
+        }
+        if(!contains(v)){
+            return null;
+        }
+        int gx = pointToGrid(v.x), gy = pointToGrid(v.y);
+        int mask = grid.edges(gx, gy);
+        ArrayList<Cell> neighbors = new ArrayList<Cell>(4);
+        for(int dir = 0; dir < 4; dir++){
+            if((mask & (1 << dir)) != 0){
+                neighbors.add(getCellAtIndex(gx + TileGrid.DX[dir],
+                                             gy + TileGrid.DY[dir]));
+            }
+        }
+        return neighbors;
     }
     
     /**
@@ -395,34 +854,119 @@ class Graph{
      *  map, return that cell
      */
     public Cell getCounterpart(Cell c) {
-        if (vertices.contains(c)) {
-            return getCellAt(c.x, c.y);
-        }
-        return null;
+        return getCellAt(c.x, c.y);
     }
     
     /**
      * Return the cell at the passed in coordinates
      */
     public Cell getCellAt(int x, int y) {
-        for (Cell c : vertices)
-            if (c.x == x && c.y == y)
-                return c;
-        return null;
+        int id = index.get(x, y);
+        if (id == CellIndex.NONE)
+            return null;
+        return vertices.get(id);
     }
     
     /**
      * Return the cell at the passed in index
      */
     public Cell getCellAtIndex(int x, int y) {
-        for (Cell c : vertices)
-            if (c.x == (gridToPoint(x)) && c.y == (gridToPoint(y)))
-                return c;
-        return null;
+        return getCellAt(gridToPoint(x), gridToPoint(y));
+    }
+    
+    /**
+     * Return the id of the passed in cell, its position in the vertex list,
+     *	or CellIndex.NONE if it is not in the graph. Ids never change, so
+     *	planners can keep per-cell state in arrays indexed by id.
+     */
+    public int idOf(Cell v) {
+        return index.get(v.x, v.y);
+    }
+    
+    /**
+     * Return the id of the cell at the passed in grid location, or
+     *	CellIndex.NONE if there is no cell there
+     */
+    public int idAt(int gx, int gy) {
+        return index.get(gridToPoint(gx), gridToPoint(gy));
+    }
+    
+    /**
+     * Returns true if the straight line between the passed in cells only
+     *	touches cells that are known and are not walls
+     */
+    public boolean lineOfSight(Cell c1, Cell c2) {
+        return Supercover.walk(pointToGrid(c1.x), pointToGrid(c1.y),
+                               pointToGrid(c2.x), pointToGrid(c2.y),
+                               true, clear);
+    }
+    
+    /**
+     * Visitor that stops at the first cell that is unknown or a wall
+     */
+    private final Supercover.Visitor clear = new Supercover.Visitor() {
+        public boolean visit(int gx, int gy) {
+            int content = grid.content(gx, gy);
+            return content != TileGrid.NONE && content != TileGrid.WALL;
+        }
+    };
+    
+    /**
+     * Return the cell with the passed in id
+     */
+    public Cell getCell(int id) {
+        return vertices.get(id);
+    }
+    
+    /**
+     * Return the edge mask of the cell with the passed in id, with bit d set
+     *	if it is connected to its neighbour in TileGrid direction d
+     */
+    public int edgeMask(int id) {
+        Cell v = vertices.get(id);
+        return grid.edges(pointToGrid(v.x), pointToGrid(v.y));
+    }
+    
+    /**
+     * Return the id of the neighbour of a cell in the passed in TileGrid
+     *	direction, or CellIndex.NONE if there is no cell there. The edge
+     *	mask says whether the two are connected.
+     */
+    public int neighborId(int id, int dir) {
+        Cell v = vertices.get(id);
+        return index.get(v.x + TileGrid.DX[dir]*cell_size,
+                         v.y + TileGrid.DY[dir]*cell_size);
+    }
+    
+    /**
+     * Return the number of steps from the cell with the passed in id to the
+     *	nearest wall, at most WallDistance.RANGE
+     */
+    public int wallDistance(int id) {
+        return clearance.get(id);
+    }
+    
+    /**
+     * Return the cost of stepping onto the cell with the passed in id. A
+     *	cell right next to a wall costs WallDistance.WALL_PENALTY extra, and
+     *	cells a little further away cost less and less extra, so paths keep
+     *	clear of walls and corners where they can.
+     */
+    public int stepCost(int id) {
+        return cell_size + clearance.penalty(id);
+    }
+    
+    /**
+     * Returns true if any neighbour connected to the cell with the passed
+     *	in id contains a wall
+     */
+    public boolean neighborIsWall(int id) {
+        Cell v = vertices.get(id);
+        return grid.neighborIsWall(pointToGrid(v.x), pointToGrid(v.y));
     }
     
     public void printUnexplored(){
-        System.out.println("# Unexplored: "+unexplored.size());
+        System.out.println("# Unexplored: "+numUnexplored());
     }
     
     /**
@@ -431,7 +975,7 @@ class Graph{
     public void print(){
         for(Cell vertex : vertices){
             System.out.println(vertex);
-            for(Cell neighbor : edges.get(vertex)){
+            for(Cell neighbor : getNeighbors(vertex)){
                 System.out.println("\t"+neighbor);
             }
         }
@@ -474,7 +1018,7 @@ class Graph{
                 if (current != null) {
                     if (current.isWall())
                         System.out.print("#");
-                    else if (unexplored.contains(current))
+                    else if (isUnexplored(current))
                         System.out.print(".");
                     else
                         System.out.print("+");
@@ -527,7 +1071,7 @@ class Graph{
                         System.out.print("#");
                     else if (neighborIsWall(current))
                         System.out.print("%");
-                    else if (unexplored.contains(current))
+                    else if (isUnexplored(current))
                         System.out.print(".");
                     else
                         System.out.print("+");
@@ -0,0 +1,604 @@
+import java.util.*;
+
+/**
+ * Hierarchical planner based on HPA*. The grid is split into square
+ *	clusters. Wherever two neighbouring clusters are connected along their
+ *	shared border, an entrance is placed: one crossing in the middle of a
+ *	short opening, or one at each end of a long one. The cells of these
+ *	crossings are the nodes of an abstract graph. A node is linked to the
+ *	other nodes of its cluster at the cost of the best path between them
+ *	inside the cluster, and to the node it faces across the border at the
+ *	cost of that single step.
+ *
+ *	A long plan searches the abstract graph, so its cost grows with the
+ *	number of clusters it crosses rather than with the number of cells.
+ *	Each leg of the abstract path is then refined by a search confined to
+ *	one cluster. The graph reports every changed cell. Only the clusters
+ *	holding changed cells rebuild their entrances and in-cluster costs,
+ *	plus any neighbour whose node list changed, and only when the next
+ *	plan is made.
+ */
+class HierarchicalPlanner implements Graph.Listener {
+
+    /**
+     * Clusters are squares of 1 << CLUSTER_SHIFT cells
+     */
+    static final int CLUSTER_SHIFT = 4;
+    static final int CLUSTER_SIZE = 1 << CLUSTER_SHIFT;
+
+    /**
+     * Openings at least this wide get an entrance at each end
+     */
+    private static final int LONG_ENTRANCE = 6;
+
+    /**
+     * Cost used for cells that cannot be reached
+     */
+    private static final int INFINITY = Integer.MAX_VALUE/2;
+
+    /**
+     * A square block of cells, with the nodes on its borders and the cost
+     *	of the best path inside the cluster between every pair of them
+     */
+    private static class Cluster {
+
+        /**
+         * Position of the cluster, in clusters
+         */
+        final int cx, cy;
+
+        /**
+         * True if a cell in the cluster changed since it was last built
+         */
+        boolean dirty;
+
+        /**
+         * Ids of the node cells, and the cost from node i to node j at
+         *	cost[i*nodes.length + j]
+         */
+        int[] nodes;
+        int[] cost;
+
+        /**
+         * Constructor initializes variables
+         */
+        Cluster(int cx, int cy){
+            this.cx = cx;
+            this.cy = cy;
+            this.dirty = false;
+            this.nodes = new int[0];
+            this.cost = new int[0];
+        }
+    }
+
+    /**
+     * Graph being planned over
+     */
+    private Graph room;
+
+    /**
+     * Index from cluster position to positions in the cluster list
+     */
+    private CellIndex clusterIndex;
+    private ArrayList<Cluster> clusters;
+
+    /**
+     * Clusters that changed since the last plan
+     */
+    private ArrayList<Cluster> dirty;
+
+    /**
+     * Crossings of every border as pairs of cell ids, the first in the
+     *	lower cluster. The key of the border east of cluster (cx, cy) is
+     *	(2*cx, cy) and of the border north of it (2*cx+1, cy).
+     */
+    private CellIndex borderIndex;
+    private ArrayList<int[]> borders;
+
+    /**
+     * Index from node cell ids to the cluster and position of the node,
+     *	packed as cluster*NODE_STRIDE + position
+     */
+    private CellIndex nodeIndex;
+    private static final int NODE_STRIDE = 8*CLUSTER_SIZE;
+
+    /**
+     * Workspace for the abstract search, indexed by cell id
+     */
+    private IndexedHeap open;
+    private long[] closed;
+    private int[] g_score;
+    private int[] parent;
+    private int opened;
+
+    /**
+     * Workspace for searches inside one cluster, indexed by the position of
+     *	a cell in its cluster
+     */
+    private IndexedHeap local_open;
+    private int[] local_dist;
+    private int[] local_parent;
+
+    /**
+     * Costs from the start to the nodes of its cluster, and from the nodes
+     *	of the goal's cluster to the goal, for the current plan
+     */
+    private int[] start_cost;
+    private int[] goal_cost;
+    private int start_goal_cost;
+
+    /**
+     * Flat search used when the abstract graph finds no path
+     */
+    private PathSearch fallback;
+
+    /**
+     * Number of abstract nodes expanded by the last plan
+     */
+    private int expanded;
+
+    /**
+     * Constructor initializes variables and starts listening to the graph.
+     *	Every cell already in the graph is taken into account.
+     */
+    HierarchicalPlanner(Graph room){
+        this.room = room;
+        this.clusterIndex = new CellIndex(64);
+        this.clusters = new ArrayList<Cluster>();
+        this.dirty = new ArrayList<Cluster>();
+        this.borderIndex = new CellIndex(128);
+        this.borders = new ArrayList<int[]>();
+        this.nodeIndex = new CellIndex(1024);
+        this.open = new IndexedHeap(1024);
+        this.closed = new long[16];
+        this.g_score = new int[1024];
+        this.parent = new int[1024];
+        int area = CLUSTER_SIZE*CLUSTER_SIZE;
+        this.local_open = new IndexedHeap(area);
+        this.local_dist = new int[area];
+        this.local_parent = new int[area];
+        this.fallback = new PathSearch();
+        for (int id = 0; id < room.V(); id++)
+            cellChanged(id);
+        room.addListener(this);
+    }
+
+    /**
+     * Accessor method for the number of abstract nodes expanded by the last
+     *	plan
+     */
+    int expanded(){
+        return expanded;
+    }
+
+    /**
+     * Accessor method for the number of clusters
+     */
+    int numClusters(){
+        return clusters.size();
+    }
+
+    /**
+     * Mark the cluster holding a changed cell to be rebuilt
+     */
+    public void cellChanged(int id){
+        Cell v = room.getCell(id);
+        Cluster c = cluster(Graph.pointToGrid(v.x) >> CLUSTER_SHIFT,
+                            Graph.pointToGrid(v.y) >> CLUSTER_SHIFT, true);
+        if (!c.dirty) {
+            c.dirty = true;
+            dirty.add(c);
+        }
+    }
+
+    /**
+     * Find a path from start to goal. The abstract graph picks the
+     *	clusters to pass through, and every leg is then refined inside its
+     *	cluster into the cells of the returned path.
+     */
+    Stack<Cell> plan(Cell start, Cell goal){
+        expanded = 0;
+        if (start.equals(goal)) {
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int start_id = room.idOf(start);
+        int goal_id = room.idOf(goal);
+        if (start_id == CellIndex.NONE || goal_id == CellIndex.NONE ||
+            room.getCell(goal_id).isWall())
+            return null;
+        refresh();
+
+        ArrayList<Integer> legs = abstractPath(start_id, goal_id);
+        if (legs == null)
+            return fallback.a_star(room, start, goal);
+
+        ArrayList<Integer> cells = new ArrayList<Integer>();
+        cells.add(start_id);
+        for (int i = 1; i < legs.size(); i++) {
+            if (!refine(cells, legs.get(i-1), legs.get(i)))
+                return fallback.a_star(room, start, goal);
+        }
+        Stack<Cell> total_path = new Stack<Cell>();
+        total_path.push(goal);
+        for (int i = cells.size()-2; i > 0; i--)
+            total_path.push(room.getCell(cells.get(i)));
+        total_path.push(start);
+        return total_path;
+    }
+
+    /**
+     * Search the abstract graph, with the start and goal linked into it
+     *	through their clusters. Returns the cells of the abstract path from
+     *	the start to the goal, or null if there is none.
+     */
+    private ArrayList<Integer> abstractPath(int start_id, int goal_id){
+        Cluster from = clusterOf(start_id);
+        Cluster to = clusterOf(goal_id);
+        explore(start_id, from, false);
+        start_cost = costsTo(from);
+        start_goal_cost = from == to ? localDist(goal_id) : INFINITY;
+        explore(goal_id, to, true);
+        goal_cost = costsTo(to);
+
+        reset();
+        Cell goal = room.getCell(goal_id);
+        g_score[start_id] = 0;
+        parent[start_id] = CellIndex.NONE;
+        open.push(start_id, ((long)room.getCell(start_id).heuristic(goal) << 32) | opened++);
+        while (!open.isEmpty()) {
+            int current = open.pop();
+            if (current == goal_id) {
+                ArrayList<Integer> legs = new ArrayList<Integer>();
+                for (int id = current; id != CellIndex.NONE; id = parent[id])
+                    legs.add(0, id);
+                return legs;
+            }
+            closed[current >>> 6] |= 1L << current;
+            expanded++;
+
+            if (current == start_id) {
+                for (int i = 0; i < from.nodes.length; i++)
+                    relax(current, from.nodes[i], start_cost[i], goal);
+                relax(current, goal_id, start_goal_cost, goal);
+            }
+            int node = nodeIndex.get(CellIndex.key(current, 0));
+            if (node == CellIndex.NONE)
+                continue;
+            Cluster c = clusters.get(node / NODE_STRIDE);
+            int i = node % NODE_STRIDE;
+            int n = c.nodes.length;
+            for (int j = 0; j < n; j++)
+                relax(current, c.nodes[j], c.cost[i*n + j], goal);
+            if (c == to)
+                relax(current, goal_id, goal_cost[i], goal);
+            int mask = room.edgeMask(current);
+            for (int dir = 0; dir < 4; dir++) {
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int across = room.neighborId(current, dir);
+                if (clusterOf(across) != c &&
+                    nodeIndex.get(CellIndex.key(across, 0)) != CellIndex.NONE &&
+                    !room.getCell(across).isWall())
+                    relax(current, across, room.stepCost(across), goal);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Offer a path to a node through the passed in node
+     */
+    private void relax(int current, int next, int cost, Cell goal){
+        if (cost >= INFINITY || next == current || isClosed(next))
+            return;
+        int tentative_g_score = g_score[current] + cost;
+        boolean seen = open.contains(next);
+        if (!seen || tentative_g_score < g_score[next]) {
+            parent[next] = current;
+            g_score[next] = tentative_g_score;
+            int f_score = tentative_g_score + room.getCell(next).heuristic(goal);
+            long order = seen ? open.key(next) & 0xffffffffL : opened++;
+            open.push(next, ((long)f_score << 32) | order);
+        }
+    }
+
+    /**
+     * Append the cells after from up to and including to. Legs between
+     *	clusters are a single step, and legs inside a cluster follow the
+     *	best path inside it. Returns false if the leg cannot be walked.
+     */
+    private boolean refine(ArrayList<Integer> cells, int from, int to){
+        if (from == to)
+            return true;
+        Cluster c = clusterOf(from);
+        if (clusterOf(to) != c) {
+            cells.add(to);
+            return true;
+        }
+        explore(from, c, false);
+        if (localDist(to) >= INFINITY)
+            return false;
+        int at = cells.size();
+        for (int l = local(to); l != local(from); l = local_parent[l])
+            cells.add(at, room.idAt(base(c.cx) + (l & (CLUSTER_SIZE-1)),
+                                    base(c.cy) + (l >> CLUSTER_SHIFT)));
+        return true;
+    }
+
+    /**
+     * Rebuild every cluster that changed since the last plan, along with
+     *	its borders and any neighbour whose nodes changed as a result
+     */
+    private void refresh(){
+        if (dirty.isEmpty())
+            return;
+        ArrayList<Cluster> touched = new ArrayList<Cluster>();
+        for (Cluster c : dirty) {
+            border(c.cx, c.cy, false);
+            border(c.cx, c.cy, true);
+            border(c.cx-1, c.cy, false);
+            border(c.cx, c.cy-1, true);
+            touched.add(c);
+            for (int dir = 0; dir < 4; dir++) {
+                Cluster n = cluster(c.cx + TileGrid.DX[dir],
+                                    c.cy + TileGrid.DY[dir], false);
+                if (n != null && !n.dirty && !touched.contains(n))
+                    touched.add(n);
+            }
+        }
+        for (Cluster c : touched) {
+            int[] nodes = nodes(c);
+            if (c.dirty || !Arrays.equals(nodes, c.nodes)) {
+                c.nodes = nodes;
+                costs(c);
+            }
+            c.dirty = false;
+        }
+        dirty.clear();
+        nodeIndex.clear();
+        for (int i = 0; i < clusters.size(); i++) {
+            int[] nodes = clusters.get(i).nodes;
+            for (int j = 0; j < nodes.length; j++)
+                nodeIndex.put(CellIndex.key(nodes[j], 0), i*NODE_STRIDE + j);
+        }
+    }
+
+    /**
+     * Find the crossings of the border east of, or north of, the passed in
+     *	cluster. Each unbroken opening gets a crossing in its middle, or one
+     *	at each end if it is long.
+     */
+    private void border(int cx, int cy, boolean north){
+        int[] pairs = new int[4*CLUSTER_SIZE];
+        int count = 0;
+        int run = 0;
+        for (int k = 0; k <= CLUSTER_SIZE; k++) {
+            if (k < CLUSTER_SIZE && crossing(cx, cy, north, k)) {
+                run++;
+                continue;
+            }
+            if (run > 0) {
+                int first = k - run, last = k - 1;
+                if (run >= LONG_ENTRANCE) {
+                    count = addCrossing(cx, cy, north, first, pairs, count);
+                    count = addCrossing(cx, cy, north, last, pairs, count);
+                }
+                else {
+                    count = addCrossing(cx, cy, north, (first + last) >>> 1,
+                                        pairs, count);
+                }
+            }
+            run = 0;
+        }
+        long key = CellIndex.key(2*cx + (north ? 1 : 0), cy);
+        int i = borderIndex.get(key);
+        if (i == CellIndex.NONE) {
+            borderIndex.put(key, borders.size());
+            borders.add(null);
+            i = borders.size()-1;
+        }
+        borders.set(i, Arrays.copyOf(pairs, count));
+    }
+
+    /**
+     * Returns true if the k-th pair of cells across a border is open
+     */
+    private boolean crossing(int cx, int cy, boolean north, int k){
+        int a = borderCell(cx, cy, north, k, false);
+        int b = borderCell(cx, cy, north, k, true);
+        if (a == CellIndex.NONE || b == CellIndex.NONE ||
+            room.getCell(a).isWall() || room.getCell(b).isWall())
+            return false;
+        int dir = north ? TileGrid.NORTH : TileGrid.EAST;
+        return (room.edgeMask(a) & (1 << dir)) != 0;
+    }
+
+    /**
+     * Add the k-th pair of cells across a border as a crossing
+     */
+    private int addCrossing(int cx, int cy, boolean north, int k,
+                            int[] pairs, int count){
+        pairs[count++] = borderCell(cx, cy, north, k, false);
+        pairs[count++] = borderCell(cx, cy, north, k, true);
+        return count;
+    }
+
+    /**
+     * Id of the k-th cell along a border, on the lower or upper side
+     */
+    private int borderCell(int cx, int cy, boolean north, int k, boolean upper){
+        if (north)
+            return room.idAt(base(cx) + k, base(cy) + CLUSTER_SIZE - (upper ? 0 : 1));
+        return room.idAt(base(cx) + CLUSTER_SIZE - (upper ? 0 : 1), base(cy) + k);
+    }
+
+    /**
+     * Collect the cells of a cluster that are part of a crossing on any of
+     *	its four borders
+     */
+    private int[] nodes(Cluster c){
+        int[] nodes = new int[NODE_STRIDE];
+        int n = 0;
+        n = addNodes(nodes, n, c.cx, c.cy, false, 0);
+        n = addNodes(nodes, n, c.cx, c.cy, true, 0);
+        n = addNodes(nodes, n, c.cx-1, c.cy, false, 1);
+        n = addNodes(nodes, n, c.cx, c.cy-1, true, 1);
+        return Arrays.copyOf(nodes, n);
+    }
+
+    /**
+     * Add one side of the crossings of a border to a node list, skipping
+     *	cells already in it
+     */
+    private int addNodes(int[] nodes, int n, int cx, int cy, boolean north, int side){
+        int i = borderIndex.get(CellIndex.key(2*cx + (north ? 1 : 0), cy));
+        if (i == CellIndex.NONE)
+            return n;
+        int[] pairs = borders.get(i);
+        for (int p = side; p < pairs.length; p += 2) {
+            boolean known = false;
+            for (int j = 0; j < n && !known; j++)
+                known = nodes[j] == pairs[p];
+            if (!known)
+                nodes[n++] = pairs[p];
+        }
+        return n;
+    }
+
+    /**
+     * Compute the cost of the best path inside a cluster between every
+     *	pair of its nodes
+     */
+    private void costs(Cluster c){
+        int n = c.nodes.length;
+        c.cost = new int[n*n];
+        for (int i = 0; i < n; i++) {
+            explore(c.nodes[i], c, false);
+            for (int j = 0; j < n; j++)
+                c.cost[i*n + j] = localDist(c.nodes[j]);
+        }
+    }
+
+    /**
+     * Cost of reaching every node of a cluster from the source of the last
+     *	search inside it, or of reaching the source from every node
+     */
+    private int[] costsTo(Cluster c){
+        int[] cost = new int[c.nodes.length];
+        for (int i = 0; i < cost.length; i++)
+            cost[i] = localDist(c.nodes[i]);
+        return cost;
+    }
+
+    /**
+     * Search a cluster outwards from a source cell, staying inside it. A
+     *	forward search finds the cost from the source to every cell, and a
+     *	reverse search the cost from every cell to the source.
+     */
+    private void explore(int source, Cluster c, boolean reverse){
+        Arrays.fill(local_dist, INFINITY);
+        local_open.clear();
+        int s = local(source);
+        local_dist[s] = 0;
+        local_parent[s] = s;
+        local_open.push(s, 0);
+        while (!local_open.isEmpty()) {
+            int u = local_open.pop();
+            int id = room.idAt(base(c.cx) + (u & (CLUSTER_SIZE-1)),
+                               base(c.cy) + (u >> CLUSTER_SHIFT));
+            int mask = room.edgeMask(id);
+            for (int dir = 0; dir < 4; dir++) {
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int n = room.neighborId(id, dir);
+                if (clusterOf(n) != c || room.getCell(n).isWall())
+                    continue;
+                int d = local_dist[u] + room.stepCost(reverse ? id : n);
+                int l = local(n);
+                if (d < local_dist[l]) {
+                    local_dist[l] = d;
+                    local_parent[l] = u;
+                    local_open.push(l, d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cost to a cell found by the last search inside a cluster
+     */
+    private int localDist(int id){
+        return local_dist[local(id)];
+    }
+
+    /**
+     * Position of a cell in its cluster
+     */
+    private int local(int id){
+        Cell v = room.getCell(id);
+        int gx = Graph.pointToGrid(v.x), gy = Graph.pointToGrid(v.y);
+        return ((gy & (CLUSTER_SIZE-1)) << CLUSTER_SHIFT) | (gx & (CLUSTER_SIZE-1));
+    }
+
+    /**
+     * Grid coordinate of the first cell of a cluster
+     */
+    private static int base(int c){
+        return c << CLUSTER_SHIFT;
+    }
+
+    /**
+     * Return the cluster holding the cell with the passed in id
+     */
+    private Cluster clusterOf(int id){
+        Cell v = room.getCell(id);
+        return cluster(Graph.pointToGrid(v.x) >> CLUSTER_SHIFT,
+                       Graph.pointToGrid(v.y) >> CLUSTER_SHIFT, true);
+    }
+
+    /**
+     * Return the cluster at the passed in position, creating it if create
+     *	is true, otherwise returning null when it does not exist
+     */
+    private Cluster cluster(int cx, int cy, boolean create){
+        long key = CellIndex.key(cx, cy);
+        int i = clusterIndex.get(key);
+        if (i != CellIndex.NONE)
+            return clusters.get(i);
+        if (!create)
+            return null;
+        Cluster c = new Cluster(cx, cy);
+        clusterIndex.put(key, clusters.size());
+        clusters.add(c);
+        return c;
+    }
+
+    /**
+     * Returns true if the cell with the passed in id has been expanded
+     */
+    private boolean isClosed(int id){
+        return (closed[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Prepare the abstract search workspace for the current graph
+     */
+    private void reset(){
+        int V = room.V();
+        open.clear();
+        open.ensureCapacity(V);
+        if (g_score.length < V) {
+            int n = Math.max(V, g_score.length*2);
+            g_score = new int[n];
+            parent = new int[n];
+        }
+        int words = (V + 63) >>> 6;
+        if (closed.length < words)
+            closed = new long[Math.max(words, closed.length*2)];
+        else
+            Arrays.fill(closed, 0, words, 0L);
+        opened = 0;
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of integer ids ordered by long keys. Every id knows its
+ *	position in the heap, so keys can be changed in place (decrease-key)
+ *	and membership is a single array read. Nothing is allocated once the
+ *	heap is large enough for the ids it holds.
+ */
+class IndexedHeap {
+
+    /**
+     * Ids in heap order
+     */
+    private int[] heap;
+
+    /**
+     * Key of each id, indexed by id
+     */
+    private long[] keys;
+
+    /**
+     * Position of each id in the heap, -1 if it is not in the heap
+     */
+    private int[] pos;
+
+    /**
+     * Number of ids in the heap
+     */
+    private int size;
+
+    /**
+     * Constructor initializes variables
+     */
+    IndexedHeap(int capacity){
+        this.heap = new int[capacity];
+        this.keys = new long[capacity];
+        this.pos = new int[capacity];
+        this.size = 0;
+        Arrays.fill(pos, -1);
+    }
+
+    /**
+     * Make room for ids below the passed in capacity
+     */
+    void ensureCapacity(int capacity){
+        if (capacity <= pos.length)
+            return;
+        int n = Math.max(capacity, pos.length*2);
+        int old = pos.length;
+        heap = Arrays.copyOf(heap, n);
+        keys = Arrays.copyOf(keys, n);
+        pos = Arrays.copyOf(pos, n);
+        Arrays.fill(pos, old, n, -1);
+    }
+
+    /**
+     * Returns true if the heap holds no ids
+     */
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * Accessor method for number of ids
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * Returns true if the passed in id is in the heap
+     */
+    boolean contains(int id){
+        return id < pos.length && pos[id] >= 0;
+    }
+
+    /**
+     * Return the key of an id in the heap
+     */
+    long key(int id){
+        return keys[id];
+    }
+
+    /**
+     * Return the id at position i of the heap, for visiting every id in
+     *	no particular order
+     */
+    int get(int i){
+        return heap[i];
+    }
+
+    /**
+     * Return the id with the smallest key without removing it
+     */
+    int peek(){
+        return heap[0];
+    }
+
+    /**
+     * Return the smallest key in the heap
+     */
+    long peekKey(){
+        return keys[heap[0]];
+    }
+
+    /**
+     * Insert an id, or move it to its new place if it is already present
+     */
+    void push(int id, long key){
+        ensureCapacity(id+1);
+        if (pos[id] < 0) {
+            heap[size] = id;
+            pos[id] = size++;
+            keys[id] = key;
+            up(pos[id]);
+        }
+        else {
+            long old = keys[id];
+            keys[id] = key;
+            if (key < old)
+                up(pos[id]);
+            else
+                down(pos[id]);
+        }
+    }
+
+    /**
+     * Remove and return the id with the smallest key
+     */
+    int pop(){
+        int id = heap[0];
+        remove(id);
+        return id;
+    }
+
+    /**
+     * Remove an id from the heap if it is present
+     */
+    void remove(int id){
+        if (!contains(id))
+            return;
+        int i = pos[id];
+        pos[id] = -1;
+        size--;
+        if (i == size)
+            return;
+        int last = heap[size];
+        heap[i] = last;
+        pos[last] = i;
+        up(i);
+        down(pos[last]);
+    }
+
+    /**
+     * Remove every id from the heap
+     */
+    void clear(){
+        for (int i = 0; i < size; i++)
+            pos[heap[i]] = -1;
+        size = 0;
+    }
+
+    /**
+     * Move the entry at position i towards the root until it is in order
+     */
+    private void up(int i){
+        int id = heap[i];
+        long key = keys[id];
+        while (i > 0) {
+            int parent = (i-1) >>> 1;
+            int p = heap[parent];
+            if (keys[p] <= key)
+                break;
+            heap[i] = p;
+            pos[p] = i;
+            i = parent;
+        }
+        heap[i] = id;
+        pos[id] = i;
+    }
+
+    /**
+     * Move the entry at position i towards the leaves until it is in order
+     */
+    private void down(int i){
+        int id = heap[i];
+        long key = keys[id];
+        while (true) {
+            int child = 2*i + 1;
+            if (child >= size)
+                break;
+            if (child+1 < size && keys[heap[child+1]] < keys[heap[child]])
+                child++;
+            int c = heap[child];
+            if (keys[c] >= key)
+                break;
+            heap[i] = c;
+            pos[c] = i;
+            i = child;
+        }
+        heap[i] = id;
+        pos[id] = i;
+    }
+}
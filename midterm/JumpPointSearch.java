@@ -0,0 +1,336 @@
+import java.util.*;
+
+/**
+ * Jump Point Search over the 4-connected grid of a Graph. Runs of cells that
+ *	only lead to symmetric paths are skipped in a single jump, so open rooms
+ *	expand a handful of jump points instead of every cell.
+ *
+ *	Horizontal jumps only turn at forced neighbours, while vertical jumps
+ *	scan horizontally from every cell they pass. A horizontal jump gives
+ *	every cell it passes the same jump point, so each is remembered for
+ *	the rest of the search and a row is scanned at most once each way.
+ *
+ *	Step costs grow near walls, so a turn is only pruned where taking it
+ *	one cell earlier costs no more. A horizontal jump turns wherever the
+ *	cell beside the one it came from costs more than the one it reached,
+ *	which keeps the costs equal to those of PathSearch.a_star.
+ */
+class JumpPointSearch {
+
+    /**
+     * Open list, ordered by f score and then by insertion order
+     */
+    private IndexedHeap open;
+
+    /**
+     * Jump points already expanded, one bit per id
+     */
+    private long[] closed;
+
+    /**
+     * Cost from the start, parent jump point, and direction each jump point
+     *	was reached in (-1 for the start, which is fully expanded), valid
+     *	only for cells opened by the current search
+     */
+    private int[] g_score;
+    private int[] parent;
+    private int[] arrival;
+
+    /**
+     * Graph and goal of the current search
+     */
+    private Graph room;
+    private int goal_id;
+
+    /**
+     * Cost of the last successful jump
+     */
+    private int jump_cost;
+
+    /**
+     * Horizontal jumps made in the current search, two slots per cell for
+     *	west and east: the jump point, NONE if the jump is blocked, and its
+     *	cost. A slot only holds a jump if its stamp is the current search.
+     */
+    private int[] jump_point;
+    private int[] jump_costs;
+    private int[] jump_stamp;
+    private int search;
+
+    /**
+     * Number of cells opened in the current search, used to break ties
+     */
+    private int opened;
+
+    /**
+     * Number of jump points expanded by the last search
+     */
+    private int expanded;
+
+    /**
+     * Constructor initializes variables
+     */
+    JumpPointSearch(){
+        this.open = new IndexedHeap(1024);
+        this.closed = new long[16];
+        this.g_score = new int[1024];
+        this.parent = new int[1024];
+        this.arrival = new int[1024];
+        this.jump_point = new int[2048];
+        this.jump_costs = new int[2048];
+        this.jump_stamp = new int[2048];
+    }
+
+    /**
+     * Accessor method for the number of jump points expanded by the last
+     *	search
+     */
+    int expanded(){
+        return expanded;
+    }
+
+    /**
+     * Find a path from start to goal. The path holds every cell between the
+     *	jump points, so it can be used anywhere an A* path is.
+     */
+    Stack<Cell> search(Graph room, Cell start, Cell goal){
+        expanded = 0;
+        if(start.equals(goal)){
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int start_id = room.idOf(start);
+        if(start_id == CellIndex.NONE){
+            return null;
+        }
+        reset(room);
+        this.goal_id = room.idOf(goal);
+
+        g_score[start_id] = 0;
+        parent[start_id] = CellIndex.NONE;
+        arrival[start_id] = -1;
+        open.push(start_id, ((long)(int)start.distance(goal) << 32) | opened++);
+
+        while (!open.isEmpty()){
+            int current = open.pop();
+            if (current == goal_id){
+                return reconstruct_path(current, start_id, start, goal);
+            }
+            closed[current >>> 6] |= 1L << current;
+            expanded++;
+
+            int d = arrival[current];
+            for (int dir = 0; dir < 4; dir++){
+                if (d >= 0 && !natural(current, d, dir))
+                    continue;
+                int next = horizontal(dir) ? jumpHorizontal(current, dir)
+                                           : jumpVertical(current, dir);
+                if (next == CellIndex.NONE || isClosed(next))
+                    continue;
+                int tentative_g_score = g_score[current] + jump_cost;
+                boolean seen = open.contains(next);
+                if (!seen || tentative_g_score < g_score[next]){
+                    parent[next] = current;
+                    g_score[next] = tentative_g_score;
+                    arrival[next] = dir;
+                    int f_score = tentative_g_score + room.getCell(next).heuristic(goal);
+                    long order = seen ? open.key(next) & 0xffffffffL : opened++;
+                    open.push(next, ((long)f_score << 32) | order);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a jump point reached in direction d should be left in
+     *	direction dir. Straight on is always natural, vertical arrivals may
+     *	also turn horizontally, and horizontal arrivals only turn towards
+     *	forced neighbours.
+     */
+    private boolean natural(int id, int d, int dir){
+        if (dir == d)
+            return true;
+        if (dir == TileGrid.opposite(d))
+            return false;
+        if (!horizontal(d))
+            return true;
+        // The cell it came from, which is only a wall if it is the start
+        int behind = room.neighborId(id, TileGrid.opposite(d));
+        return forced(behind, id, d, dir);
+    }
+
+    /**
+     * Returns true if the cell beside to, in direction side, can only be
+     *	reached optimally by stepping from "from" to "to", in direction dir,
+     *	and then turning, because the cell beside "from" is missing, blocked
+     *	or costs more to step onto than "to"
+     */
+    private boolean forced(int from, int to, int dir, int side){
+        int target = step(to, side);
+        if (target == CellIndex.NONE)
+            return false;
+        int beside = step(from, side);
+        return beside == CellIndex.NONE ||
+               room.stepCost(beside) > room.stepCost(to) ||
+               step(beside, dir) != target;
+    }
+
+    /**
+     * Jump horizontally from a cell until reaching the goal or a cell with
+     *	a forced neighbour. Returns the jump point, with its cost in
+     *	jump_cost, or NONE if the jump is blocked.
+     */
+    private int jumpHorizontal(int id, int dir){
+        int side = dir == TileGrid.EAST ? 1 : 0;
+        int cost = 0;
+        int passed = 0;
+        int current = id;
+        int found;
+        while (true){
+            int slot = 2*current + side;
+            if (jump_stamp[slot] == search){
+                found = jump_point[slot];
+                cost += jump_costs[slot];
+                break;
+            }
+            // The cost so far, until the jump point is known
+            jump_costs[slot] = cost;
+            passed++;
+            int next = step(current, dir);
+            if (next == CellIndex.NONE){
+                found = CellIndex.NONE;
+                break;
+            }
+            cost += room.stepCost(next);
+            if (next == goal_id ||
+                forced(current, next, dir, TileGrid.NORTH) ||
+                forced(current, next, dir, TileGrid.SOUTH)){
+                found = next;
+                break;
+            }
+            current = next;
+        }
+        current = id;
+        for (int i = 0; i < passed; i++){
+            int slot = 2*current + side;
+            jump_stamp[slot] = search;
+            jump_point[slot] = found;
+            jump_costs[slot] = cost - jump_costs[slot];
+            current = room.neighborId(current, dir);
+        }
+        jump_cost = cost;
+        return found;
+    }
+
+    /**
+     * Jump vertically from a cell until reaching the goal or a cell from
+     *	which a horizontal jump finds a jump point. Returns the jump point,
+     *	with its cost in jump_cost, or NONE if the jump is blocked.
+     */
+    private int jumpVertical(int id, int dir){
+        int cost = 0;
+        int current = id;
+        while (true){
+            int next = step(current, dir);
+            if (next == CellIndex.NONE)
+                return CellIndex.NONE;
+            cost += room.stepCost(next);
+            if (next == goal_id ||
+                jumpHorizontal(next, TileGrid.WEST) != CellIndex.NONE ||
+                jumpHorizontal(next, TileGrid.EAST) != CellIndex.NONE){
+                jump_cost = cost;
+                return next;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * Return the cell reached by stepping from a cell in the passed in
+     *	direction, or NONE if there is no edge or the cell is a wall
+     */
+    private int step(int id, int dir){
+        if ((room.edgeMask(id) & (1 << dir)) == 0)
+            return CellIndex.NONE;
+        int next = room.neighborId(id, dir);
+        if (next == CellIndex.NONE || room.getCell(next).isWall())
+            return CellIndex.NONE;
+        return next;
+    }
+
+    /**
+     * Returns true for the east and west directions
+     */
+    private static boolean horizontal(int dir){
+        return dir == TileGrid.WEST || dir == TileGrid.EAST;
+    }
+
+    /**
+     * Grid step in x and y between two adjacent cells
+     */
+    private int stepX(int from, int to){
+        return Integer.signum(room.getCell(to).x - room.getCell(from).x);
+    }
+    private int stepY(int from, int to){
+        return Integer.signum(room.getCell(to).y - room.getCell(from).y);
+    }
+
+    /**
+     * Returns true if the jump point with the passed in id was expanded
+     */
+    private boolean isClosed(int id){
+        return (closed[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Prepare the workspace for a search over the passed in graph
+     */
+    private void reset(Graph room){
+        this.room = room;
+        int V = room.V();
+        open.clear();
+        open.ensureCapacity(V);
+        if (g_score.length < V) {
+            int n = Math.max(V, g_score.length*2);
+            g_score = new int[n];
+            parent = new int[n];
+            arrival = new int[n];
+            jump_point = new int[2*n];
+            jump_costs = new int[2*n];
+            jump_stamp = new int[2*n];
+            search = 0;
+        }
+        if (++search == 0){
+            Arrays.fill(jump_stamp, 0);
+            search = 1;
+        }
+        int words = (V + 63) >>> 6;
+        if (closed.length < words)
+            closed = new long[Math.max(words, closed.length*2)];
+        else
+            Arrays.fill(closed, 0, words, 0L);
+        opened = 0;
+    }
+
+    /**
+     * Reconstructs the path from the goal back to the start, filling in the
+     *	straight runs of cells between jump points
+     */
+    private Stack<Cell> reconstruct_path(int current, int start_id,
+                                         Cell start, Cell goal){
+        Stack<Cell> total_path = new Stack<Cell>();
+        total_path.push(goal);
+        while (parent[current] != CellIndex.NONE){
+            int from = parent[current];
+            int dir = TileGrid.direction(0, 0, stepX(current, from),
+                                         stepY(current, from));
+            do {
+                current = room.neighborId(current, dir);
+                total_path.push(current == start_id ? start : room.getCell(current));
+            } while (current != from);
+        }
+        return total_path;
+    }
+}
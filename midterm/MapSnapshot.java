@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compact binary snapshots of a Graph, so an agent that dies or reconnects
+ *	to the same level starts with the map it had instead of scanning the
+ *	room again. A snapshot is a header followed by one record per cell in
+ *	id order, so ids come back the same:
+ *
+ *	int    MAGIC
+ *	int    VERSION
+ *	int    cell size
+ *	short  length of the level name, followed by the name in UTF-8
+ *	int    number of cells
+ *	per cell:
+ *	  int  grid x
+ *	  int  grid y
+ *	  byte contents in bits 0-1, edge mask in bits 2-5, and bit 6 set
+ *	       if the cell is unexplored
+ *
+ *	Only the axis aligned edges the occupancy grid keeps are saved. The
+ *	frontier and the distances to walls follow from the cells and are
+ *	worked out again on loading. A snapshot is only loaded for the level it
+ *	was saved on, so the walls of one level never turn up on another.
+ *	Snapshots are read through a memory mapped file, which stays mapped
+ *	until the mapping is collected and cannot be replaced meanwhile on some
+ *	systems. So each run saves under a fresh name, the level name and a
+ *	generation one past the newest on disk, and the older generations are
+ *	deleted once it is saved. Each save goes to a temporary file that is
+ *	then moved over the run's snapshot, so a crash never leaves half a
+ *	snapshot behind.
+ */
+class MapSnapshot {
+
+    /**
+     * Marks the start of a snapshot, "QMAP"
+     */
+    static final int MAGIC = 0x514d4150;
+
+    /**
+     * Version of the format
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Ending of snapshot file names
+     */
+    static final String SUFFIX = ".map";
+
+    /**
+     * Sizes of the header without the level name, and of each cell
+     *	record, in bytes
+     */
+    private static final int HEADER = 18;
+    private static final int RECORD = 9;
+
+    /**
+     * Layout of the byte of each cell record
+     */
+    private static final int CONTENT_BITS = 0x3;
+    private static final int EDGE_SHIFT = 2;
+    private static final int UNEXPLORED_BIT = 0x40;
+
+    /**
+     * Encode a snapshot of the passed in graph, mapped on the passed in
+     *	level, ready for writing. The graph must not change meanwhile, but
+     *	it may once the snapshot is encoded.
+     */
+    static ByteBuffer encode(Graph room, int cell_size, String level)
+        throws IOException {
+        int V = room.V();
+        byte[] name = level.getBytes("UTF-8");
+        ByteBuffer out = ByteBuffer.allocate(HEADER + name.length + RECORD*V);
+        out.putInt(MAGIC).putInt(VERSION).putInt(cell_size)
+           .putShort((short)name.length).put(name).putInt(V);
+        for (int id = 0; id < V; id++) {
+            Cell v = room.getCell(id);
+            int packed = TileGrid.encode(v.content()) |
+                         room.edgeMask(id) << EDGE_SHIFT;
+            if (room.isUnexplored(v))
+                packed |= UNEXPLORED_BIT;
+            out.putInt(Graph.pointToGrid(v.x))
+               .putInt(Graph.pointToGrid(v.y))
+               .put((byte)packed);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Write an encoded snapshot to the passed in file
+     */
+    static synchronized void write(ByteBuffer out, File file)
+        throws IOException {
+        File temp = new File(file.getPath()+".tmp");
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        try {
+            while (out.hasRemaining())
+                channel.write(out);
+        }
+        finally {
+            channel.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a snapshot into the passed in graph, which should be empty and
+     *	have the same cell size. Throws an IOException if the file is not a
+     *	snapshot of that cell size and level or any record in it is damaged,
+     *	in which case the graph is left as it was.
+     */
+    static void read(File file, Graph room, int cell_size, String level)
+        throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY,
+                                              0, channel.size());
+            if (in.remaining() < HEADER || in.getInt() != MAGIC)
+                throw new IOException(file+" is not a map snapshot");
+            int version = in.getInt();
+            if (version != VERSION)
+                throw new IOException(file+" has version "+version);
+            int size = in.getInt();
+            if (size != cell_size)
+                throw new IOException(file+" has cells of size "+size);
+            byte[] name = new byte[in.getShort() & 0xffff];
+            if (in.remaining() < name.length + 4)
+                throw new IOException(file+" is truncated");
+            in.get(name);
+            String saved = new String(name, "UTF-8");
+            if (!saved.equals(level))
+                throw new IOException(file+" is of level "+saved);
+            int V = in.getInt();
+            if (V < 0 || in.remaining() != (long)RECORD*V)
+                throw new IOException(file+" is truncated");
+
+            // Every record is checked before any is restored, since a
+            //  damaged one would otherwise leave the graph half built
+            int start = in.position();
+            long limit = Integer.MAX_VALUE/2/cell_size;
+            CellIndex seen = new CellIndex(V);
+            for (int id = 0; id < V; id++) {
+                int gx = in.getInt(), gy = in.getInt();
+                int packed = in.get();
+                if (Math.abs((long)gx) > limit || Math.abs((long)gy) > limit)
+                    throw new IOException(file+" has cell "+id+" out of range");
+                if ((packed & CONTENT_BITS) == TileGrid.NONE)
+                    throw new IOException(file+" has cell "+id+" without contents");
+                long key = CellIndex.key(gx, gy);
+                if (seen.get(key) != CellIndex.NONE)
+                    throw new IOException(file+" has cell "+id+" twice");
+                seen.put(key, id);
+            }
+
+            // Then the cells, in id order, and the edges between them
+            in.position(start);
+            for (int id = 0; id < V; id++) {
+                int gx = in.getInt(), gy = in.getInt();
+                int packed = in.get();
+                room.restoreVertex(new Cell(Graph.gridToPoint(gx),
+                                            Graph.gridToPoint(gy),
+                                            TileGrid.decode(packed & CONTENT_BITS)),
+                                   (packed & UNEXPLORED_BIT) != 0);
+            }
+            in.position(start);
+            for (int id = 0; id < V; id++) {
+                in.position(in.position() + 8);
+                int packed = in.get();
+                Cell v = room.getCell(id);
+                int mask = (packed >> EDGE_SHIFT) & 0xf;
+                for (int dir = 0; dir < 4; dir++) {
+                    if ((mask & (1 << dir)) == 0)
+                        continue;
+                    int neighbor = room.neighborId(id, dir);
+                    if (neighbor > id)
+                        room.addEdge(v, room.getCell(neighbor));
+                }
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Return the snapshots of the passed in level in the passed in
+     *	directory, newest generation first
+     */
+    static File[] snapshots(File dir, final String level){
+        File[] found = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return generation(f.getName(), level) >= 0;
+            }
+        });
+        if (found == null)
+            return new File[0];
+        Arrays.sort(found, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(generation(b.getName(), level),
+                                    generation(a.getName(), level));
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Return a fresh file for the snapshots of the passed in level, one
+     *	generation past the newest in the passed in directory
+     */
+    static File next(File dir, String level){
+        File[] found = snapshots(dir, level);
+        long newest = found.length > 0 ? generation(found[0].getName(), level) : 0;
+        return new File(dir, level+"."+(newest + 1)+SUFFIX);
+    }
+
+    /**
+     * Delete every snapshot of the passed in level older than the passed in
+     *	one. A snapshot that is still mapped may not go, and is left for a
+     *	later run.
+     */
+    static void prune(File newest, String level){
+        long keep = generation(newest.getName(), level);
+        File dir = newest.getAbsoluteFile().getParentFile();
+        for (File f : snapshots(dir, level))
+            if (generation(f.getName(), level) < keep)
+                f.delete();
+    }
+
+    /**
+     * Generation of a snapshot file name of the passed in level, or -1 if
+     *	the name is not one
+     */
+    private static long generation(String name, String level){
+        if (!name.startsWith(level+".") || !name.endsWith(SUFFIX))
+            return -1;
+        String number = name.substring(level.length() + 1,
+                                       name.length() - SUFFIX.length());
+        if (number.length() == 0 || number.length() > 18)
+            return -1;
+        for (int i = 0; i < number.length(); i++)
+            if (!Character.isDigit(number.charAt(i)))
+                return -1;
+        return Long.parseLong(number);
+    }
+}
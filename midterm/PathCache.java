@@ -0,0 +1,195 @@
+import java.util.*;
+
+/**
+ * Remembers recently planned paths so that planning again towards the same
+ *	goal from a cell on an earlier path costs nothing. Each path is kept
+ *	together with its corridor, the cells on it and next to it. Only a
+ *	change to a corridor cell can change the cost of the path, and then
+ *	only the steps next to that cell are checked again, so changes
+ *	elsewhere in the map never throw a path away.
+ */
+class PathCache implements Graph.Listener {
+
+    /**
+     * Number of paths kept, the oldest is dropped first
+     */
+    static final int CAPACITY = 8;
+
+    /**
+     * Value stored in a corridor for cells next to the path
+     */
+    private static final int BESIDE = -2;
+
+    /**
+     * A cached path from a start to a goal
+     */
+    private static class Entry {
+
+        /**
+         * Ids of the cells on the path, from the start to the goal
+         */
+        int[] ids;
+
+        /**
+         * Cost of every step onto a cell of the path when it was planned
+         */
+        int[] cost;
+
+        /**
+         * Position on the path of every path cell, and BESIDE for every
+         *	cell next to the path
+         */
+        CellIndex corridor;
+
+        /**
+         * Id of the goal
+         */
+        int goal_id(){
+            return ids[ids.length-1];
+        }
+    }
+
+    /**
+     * Graph the paths were planned over
+     */
+    private Graph room;
+
+    /**
+     * Cached paths, the most recent last
+     */
+    private ArrayList<Entry> entries;
+
+    /**
+     * Number of lookups answered from the cache, and number missed
+     */
+    private int hits, misses;
+
+    /**
+     * Constructor initializes variables and starts listening to the graph
+     */
+    PathCache(Graph room){
+        this.room = room;
+        this.entries = new ArrayList<Entry>();
+        room.addListener(this);
+    }
+
+    /**
+     * Accessor methods for the number of lookups answered and missed
+     */
+    int hits(){
+        return hits;
+    }
+    int misses(){
+        return misses;
+    }
+
+    /**
+     * Return the rest of a cached path towards the goal if the start lies
+     *	on one, or null. The returned path is a new stack that begins with
+     *	the passed in start and ends with the passed in goal.
+     */
+    Stack<Cell> get(Cell start, Cell goal){
+        int start_id = room.idOf(start);
+        int goal_id = room.idOf(goal);
+        if (start_id != CellIndex.NONE && goal_id != CellIndex.NONE) {
+            for (int i = entries.size()-1; i >= 0; i--) {
+                Entry e = entries.get(i);
+                if (e.goal_id() != goal_id)
+                    continue;
+                int from = e.corridor.get(CellIndex.key(start_id, 0));
+                if (from < 0 || from == e.ids.length-1)
+                    continue;
+                hits++;
+                Stack<Cell> total_path = new Stack<Cell>();
+                total_path.push(goal);
+                for (int j = e.ids.length-2; j > from; j--)
+                    total_path.push(room.getCell(e.ids[j]));
+                total_path.push(start);
+                return total_path;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Remember a path whose top is the start and whose bottom is the goal
+     */
+    void put(Stack<Cell> path){
+        if (path == null || path.size() < 2)
+            return;
+        int n = path.size();
+        Entry e = new Entry();
+        e.ids = new int[n];
+        e.cost = new int[n];
+        e.corridor = new CellIndex(n*5);
+        for (int i = 0; i < n; i++) {
+            int id = room.idOf(path.get(n-1-i));
+            if (id == CellIndex.NONE)
+                return;
+            e.ids[i] = id;
+            e.cost[i] = room.stepCost(id);
+            e.corridor.put(CellIndex.key(id, 0), i);
+        }
+        for (int i = 0; i < n; i++) {
+            for (int dir = 0; dir < 4; dir++) {
+                int m = room.neighborId(e.ids[i], dir);
+                if (m != CellIndex.NONE &&
+                    e.corridor.get(CellIndex.key(m, 0)) == CellIndex.NONE)
+                    e.corridor.put(CellIndex.key(m, 0), BESIDE);
+            }
+        }
+        if (entries.size() == CAPACITY)
+            entries.remove(0);
+        entries.add(e);
+    }
+
+    /**
+     * Forget every cached path
+     */
+    void clear(){
+        entries.clear();
+    }
+
+    /**
+     * Check the steps of every path whose corridor holds the changed cell,
+     *	and drop the paths where one of them no longer holds
+     */
+    public void cellChanged(int id){
+        for (int i = entries.size()-1; i >= 0; i--) {
+            Entry e = entries.get(i);
+            int at = e.corridor.get(CellIndex.key(id, 0));
+            if (at == CellIndex.NONE)
+                continue;
+            boolean valid = at < 0 || (stepHolds(e, at) && stepHolds(e, at+1));
+            for (int dir = 0; valid && dir < 4; dir++) {
+                int m = room.neighborId(id, dir);
+                if (m == CellIndex.NONE)
+                    continue;
+                int p = e.corridor.get(CellIndex.key(m, 0));
+                if (p >= 0)
+                    valid = stepHolds(e, p) && stepHolds(e, p+1);
+            }
+            if (!valid)
+                entries.remove(i);
+        }
+    }
+
+    /**
+     * Returns true if the step onto the cell at position i of the path is
+     *	still open and costs what it did when the path was planned
+     */
+    private boolean stepHolds(Entry e, int i){
+        if (i <= 0 || i >= e.ids.length)
+            return true;
+        int id = e.ids[i];
+        int prev = e.ids[i-1];
+        if (room.getCell(id).isWall() || room.stepCost(id) != e.cost[i])
+            return false;
+        for (int dir = 0; dir < 4; dir++) {
+            if (room.neighborId(prev, dir) == id)
+                return (room.edgeMask(prev) & (1 << dir)) != 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.*;
+
+/**
+ * Reusable workspace for searching paths through a Graph. Per-cell state
+ *	lives in arrays indexed by cell id that are only read for cells the
+ *	current search has opened, so repeated searches allocate nothing but
+ *	the returned path.
+ */
+class PathSearch {
+
+    /**
+     * Open list, ordered by f score and then by insertion order
+     */
+    private IndexedHeap open;
+
+    /**
+     * Cells already evaluated, one bit per id
+     */
+    private long[] closed;
+
+    /**
+     * Distance from the start along the best known path, and the parent on
+     *	that path, valid only for cells opened by the current search
+     */
+    private int[] g_score;
+    private int[] parent;
+
+    /**
+     * The same state for the backward half of a bidirectional search,
+     *	where g_score is the distance to the goal and parent the next cell
+     *	towards it
+     */
+    private IndexedHeap open_back;
+    private long[] closed_back;
+    private int[] g_back;
+    private int[] parent_back;
+
+    /**
+     * Number of cells opened in the current search, used to break ties
+     */
+    private int opened;
+
+    /**
+     * Number of cells expanded by the last search
+     */
+    private int expanded;
+
+    /**
+     * Constructor initializes variables
+     */
+    PathSearch(){
+        this.open = new IndexedHeap(1024);
+        this.closed = new long[16];
+        this.g_score = new int[1024];
+        this.parent = new int[1024];
+        this.open_back = new IndexedHeap(1024);
+        this.closed_back = new long[16];
+        this.g_back = new int[1024];
+        this.parent_back = new int[1024];
+    }
+
+    /**
+     * Accessor method for the number of cells expanded by the last search
+     */
+    int expanded(){
+        return expanded;
+    }
+
+    /**
+     * Implementation of the A* algorithm. Cells are expanded in order of
+     *	f score, ties going to the cell opened first, and walls are never
+     *	entered. Stepping onto a cell costs Graph.stepCost, which grows the
+     *	closer the cell is to a wall.
+     */
+    Stack<Cell> a_star(Graph room, Cell start, Cell goal){
+        expanded = 0;
+        if(start.equals(goal)){
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int start_id = room.idOf(start);
+        if(start_id == CellIndex.NONE){
+            return null;
+        }
+        reset(room.V());
+
+        g_score[start_id] = 0;
+        parent[start_id] = CellIndex.NONE;
+        open.push(start_id, key((int)start.distance(goal)));
+
+        // Iterate until we are certain that no path was found
+        while (!open.isEmpty()){
+            int current = open.pop();
+            Cell c = room.getCell(current);
+
+            // If the current node is the goal, we are done
+            if (c.equals(goal)){
+                return reconstruct_path(room, current, start_id, start, goal);
+            }
+            closed[current >>> 6] |= 1L << current;
+            expanded++;
+
+            // Go through each neighbor of the cell
+            int mask = room.edgeMask(current);
+            for (int dir = 0; dir < 4; dir++){
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int neighbor = room.neighborId(current, dir);
+                if (isClosed(neighbor))
+                    continue;
+                Cell n = room.getCell(neighbor);
+                if (n.isWall())
+                    continue;
+
+                int tentative_g_score = g_score[current] + room.stepCost(neighbor);
+                boolean seen = open.contains(neighbor);
+                if (!seen || tentative_g_score < g_score[neighbor]){
+                    parent[neighbor] = current;
+                    g_score[neighbor] = tentative_g_score;
+                    int f_score = tentative_g_score + n.heuristic(goal);
+                    // Keep the original insertion order when re-keying
+                    long order = seen ? open.key(neighbor) & 0xffffffffL : opened++;
+                    open.push(neighbor, ((long)f_score << 32) | order);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a path from start to goal, with a bidirectional search if
+     *	bidirectional is true and with a_star otherwise
+     */
+    Stack<Cell> a_star(Graph room, Cell start, Cell goal, boolean bidirectional){
+        if (bidirectional)
+            return bidirectional(room, start, goal);
+        return a_star(room, start, goal);
+    }
+
+    /**
+     * Bidirectional A*. One search runs forwards from the start and one
+     *	backwards from the goal, each guided towards the other end, always
+     *	growing the one with the smaller open list. Whenever one reaches a
+     *	cell the other has reached, the path through that cell is a
+     *	candidate. The best candidate is optimal once it costs no more than
+     *	the smallest f score of either open list, since every path not yet
+     *	found costs at least that much. If either side runs out of cells
+     *	first there is no path, so an enclosed goal is rejected after
+     *	exploring only its own pocket instead of the whole map. Step costs
+     *	are the same as in a_star.
+     */
+    Stack<Cell> bidirectional(Graph room, Cell start, Cell goal){
+        expanded = 0;
+        if(start.equals(goal)){
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int start_id = room.idOf(start);
+        int goal_id = room.idOf(goal);
+        if(start_id == CellIndex.NONE || goal_id == CellIndex.NONE ||
+           room.getCell(goal_id).isWall()){
+            return null;
+        }
+        reset(room.V());
+        resetBack(room.V());
+
+        g_score[start_id] = 0;
+        parent[start_id] = CellIndex.NONE;
+        open.push(start_id, key(start.heuristic(goal)));
+        g_back[goal_id] = 0;
+        parent_back[goal_id] = CellIndex.NONE;
+        open_back.push(goal_id, key(goal.heuristic(start)));
+
+        int best = Integer.MAX_VALUE;
+        int meet = CellIndex.NONE;
+        while (!open.isEmpty() && !open_back.isEmpty()){
+            long bound = Math.max(open.peekKey(), open_back.peekKey()) >>> 32;
+            if (best <= bound)
+                break;
+            expanded++;
+            if (open.size() <= open_back.size()){
+                int current = open.pop();
+                closed[current >>> 6] |= 1L << current;
+                int mask = room.edgeMask(current);
+                for (int dir = 0; dir < 4; dir++){
+                    if ((mask & (1 << dir)) == 0)
+                        continue;
+                    int neighbor = room.neighborId(current, dir);
+                    if (isClosed(neighbor))
+                        continue;
+                    Cell n = room.getCell(neighbor);
+                    if (n.isWall())
+                        continue;
+                    int tentative_g_score = g_score[current] + room.stepCost(neighbor);
+                    boolean seen = open.contains(neighbor);
+                    if (!seen || tentative_g_score < g_score[neighbor]){
+                        parent[neighbor] = current;
+                        g_score[neighbor] = tentative_g_score;
+                        int f_score = tentative_g_score + n.heuristic(goal);
+                        long order = seen ? open.key(neighbor) & 0xffffffffL : opened++;
+                        open.push(neighbor, ((long)f_score << 32) | order);
+                    }
+                    if (reachedBack(neighbor) && g_score[neighbor] + g_back[neighbor] < best){
+                        best = g_score[neighbor] + g_back[neighbor];
+                        meet = neighbor;
+                    }
+                }
+            }
+            else {
+                int current = open_back.pop();
+                closed_back[current >>> 6] |= 1L << current;
+                int step = room.stepCost(current);
+                int mask = room.edgeMask(current);
+                for (int dir = 0; dir < 4; dir++){
+                    if ((mask & (1 << dir)) == 0)
+                        continue;
+                    int neighbor = room.neighborId(current, dir);
+                    if (isClosedBack(neighbor))
+                        continue;
+                    Cell n = room.getCell(neighbor);
+                    // Only the start may be a wall, as it is never entered
+                    if (n.isWall() && neighbor != start_id)
+                        continue;
+                    int tentative_g_score = g_back[current] + step;
+                    boolean seen = open_back.contains(neighbor);
+                    if (!seen || tentative_g_score < g_back[neighbor]){
+                        parent_back[neighbor] = current;
+                        g_back[neighbor] = tentative_g_score;
+                        int f_score = tentative_g_score + n.heuristic(start);
+                        long order = seen ? open_back.key(neighbor) & 0xffffffffL : opened++;
+                        open_back.push(neighbor, ((long)f_score << 32) | order);
+                    }
+                    if (reachedForward(neighbor) && g_score[neighbor] + g_back[neighbor] < best){
+                        best = g_score[neighbor] + g_back[neighbor];
+                        meet = neighbor;
+                    }
+                }
+            }
+        }
+        if (meet == CellIndex.NONE)
+            return null;
+
+        // The path is pushed from the goal back to the start, but the
+        //  backward links run from the meeting cell to the goal, so they are
+        //  turned around first, in place
+        int towards = CellIndex.NONE;
+        for (int id = meet; id != goal_id; ){
+            int next = parent_back[id];
+            parent_back[id] = towards;
+            towards = id;
+            id = next;
+        }
+        Stack<Cell> total_path = new Stack<Cell>();
+        total_path.push(goal);
+        for (int id = towards; id != CellIndex.NONE; id = parent_back[id])
+            total_path.push(id == start_id ? start : room.getCell(id));
+        int current = parent[meet];
+        while (current != CellIndex.NONE){
+            total_path.push(current == start_id ? start : room.getCell(current));
+            current = parent[current];
+        }
+        return total_path;
+    }
+
+    /**
+     * Returns true if the forward search has reached the passed in cell
+     */
+    private boolean reachedForward(int id){
+        return open.contains(id) || isClosed(id);
+    }
+
+    /**
+     * Returns true if the backward search has reached the passed in cell
+     */
+    private boolean reachedBack(int id){
+        return open_back.contains(id) || isClosedBack(id);
+    }
+
+    /**
+     * Returns true if the backward search has expanded the passed in cell
+     */
+    private boolean isClosedBack(int id){
+        return (closed_back[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Prepare the backward half of the workspace for a graph of V cells
+     */
+    private void resetBack(int V){
+        open_back.clear();
+        open_back.ensureCapacity(V);
+        if (g_back.length < V) {
+            int n = Math.max(V, g_back.length*2);
+            g_back = new int[n];
+            parent_back = new int[n];
+        }
+        int words = (V + 63) >>> 6;
+        if (closed_back.length < words)
+            closed_back = new long[Math.max(words, closed_back.length*2)];
+        else
+            Arrays.fill(closed_back, 0, words, 0L);
+    }
+
+    /**
+     * Heap key of the next cell to be opened with the passed in f score
+     */
+    private long key(int f_score){
+        return ((long)f_score << 32) | opened++;
+    }
+
+    /**
+     * Returns true if the cell with the passed in id has been evaluated
+     */
+    private boolean isClosed(int id){
+        return (closed[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Prepare the workspace for a search over a graph of V cells
+     */
+    private void reset(int V){
+        open.clear();
+        open.ensureCapacity(V);
+        if (g_score.length < V) {
+            int n = Math.max(V, g_score.length*2);
+            g_score = new int[n];
+            parent = new int[n];
+        }
+        int words = (V + 63) >>> 6;
+        if (closed.length < words)
+            closed = new long[Math.max(words, closed.length*2)];
+        else
+            Arrays.fill(closed, 0, words, 0L);
+        opened = 0;
+    }
+
+    /**
+     * Reconstructs the path from the goal back to the start through the
+     *	parent array. The start and goal are the cells that were passed in.
+     */
+    private Stack<Cell> reconstruct_path(Graph room, int current, int start_id,
+                                         Cell start, Cell goal){
+        Stack<Cell> total_path = new Stack<Cell>();
+        total_path.push(goal);
+        while (parent[current] != CellIndex.NONE){
+            current = parent[current];
+            total_path.push(current == start_id ? start : room.getCell(current));
+        }
+        return total_path;
+    }
+}
@@ -0,0 +1,236 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Connection to the quagent server that can pipeline commands. Commands
+ *	are queued and written together on flush, so several of them cost one
+ *	round trip. The server answers each command with a line starting with
+ *	CMD and the command's verb, in the order the commands were sent, so
+ *	every command sent is remembered in that order and each answer goes to
+ *	the oldest one. Only commands queued with ask wait for an answer,
+ *	which is delivered through a future. Answers to other commands, and
+ *	everything the server tells on its own, come back from events as
+ *	before.
+ *
+ *	Quagent keeps its socket private and writes each command as it is
+ *	called, so it cannot be wrapped. Only the commands the agent uses are
+ *	repeated here, and each writes its command straight away along with
+ *	anything already queued.
+ */
+class QuagentClient {
+
+    /**
+     * A command waiting for its answer
+     */
+    private static class Pending {
+
+        /**
+         * The command's first two words, such as "ask rays"
+         */
+        final String verb;
+
+        /**
+         * Receives the answer, null if it goes to events
+         */
+        final CompletableFuture<String> reply;
+
+        /**
+         * Constructor initializes variables
+         */
+        Pending(String verb, CompletableFuture<String> reply){
+            this.verb = verb;
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * Socket to the server
+     */
+    private QuagentSocket socket;
+
+    /**
+     * Commands not yet written, one per line
+     */
+    private StringBuilder queued;
+
+    /**
+     * Commands sent or queued and not yet answered, oldest first
+     */
+    private ArrayDeque<Pending> pending;
+
+    /**
+     * Constructor connects to the server on this machine
+     */
+    QuagentClient() throws Exception {
+        this(new QuagentSocket());
+    }
+
+    /**
+     * Constructor connects to the server on the passed in host
+     */
+    QuagentClient(String host) throws Exception {
+        this(new QuagentSocket(host));
+    }
+
+    /**
+     * Constructor initializes variables
+     */
+    private QuagentClient(QuagentSocket socket){
+        this.socket = socket;
+        this.queued = new StringBuilder();
+        this.pending = new ArrayDeque<Pending>();
+    }
+
+    /**
+     * Queue a command whose answer is delivered through the returned
+     *	future. Nothing is written until flush.
+     */
+    synchronized Future<String> ask(String command){
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        queued.append(command).append('\n');
+        pending.add(new Pending(verb(command), reply));
+        return reply;
+    }
+
+    /**
+     * Queue a command whose answer comes back from events. Nothing is
+     *	written until flush.
+     */
+    synchronized void send(String command){
+        queued.append(command).append('\n');
+        pending.add(new Pending(verb(command), null));
+    }
+
+    /**
+     * Write every queued command in a single write
+     */
+    synchronized void flush() throws Exception {
+        if (queued.length() == 0)
+            return;
+        socket.write(queued.toString());
+        queued.setLength(0);
+    }
+
+    /**
+     * Read what the server sent since the last call, waiting briefly if
+     *	nothing has arrived. Answers to asked commands complete their
+     *	futures, and everything else is returned.
+     */
+    public Events events() throws Exception {
+        Events read;
+        try {
+            read = socket.read();
+        }
+        catch (QDiedException e) {
+            fail(e);
+            throw e;
+        }
+        Events rest = new Events();
+        for (int i = 0; i < read.size(); i++) {
+            String line = read.eventAt(i);
+            Pending answered = match(line);
+            if (answered != null && answered.reply != null)
+                answered.reply.complete(line);
+            else
+                rest.add(line);
+        }
+        return rest;
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close() throws Exception {
+        socket.close();
+    }
+
+    public void walk(int distance) throws Exception {
+        command("do walkby "+distance);
+    }
+
+    public void turn(int degrees) throws Exception {
+        command("do turnby "+degrees);
+    }
+
+    public void pickup(String item) throws Exception {
+        command("do pickup "+item);
+    }
+
+    public void radius(float radius) throws Exception {
+        command("ask radius "+radius);
+    }
+
+    public void rays(int count) throws Exception {
+        command("ask rays "+count);
+    }
+
+    public void where() throws Exception {
+        command("do getwhere");
+    }
+
+    /**
+     * Send a command straight away, its answer coming back from events
+     */
+    private synchronized void command(String command) throws Exception {
+        send(command);
+        flush();
+    }
+
+    /**
+     * Take the oldest command off the waiting ones if the passed in line
+     *	answers it. Returns that command, or null if the line is not an
+     *	answer. Should an answer ever go missing, the commands before the one
+     *	answered are given up on, so the order is kept from then on.
+     */
+    private synchronized Pending match(String line){
+        if (!line.startsWith("CMD "))
+            return null;
+        boolean waiting = false;
+        for (Pending p : pending)
+            if (answers(line, p.verb)) {
+                waiting = true;
+                break;
+            }
+        if (!waiting)
+            return null;
+        Pending oldest = pending.poll();
+        while (!answers(line, oldest.verb)) {
+            if (oldest.reply != null)
+                oldest.reply.completeExceptionally(
+                    new IllegalStateException("no answer to "+oldest.verb));
+            oldest = pending.poll();
+        }
+        return oldest;
+    }
+
+    /**
+     * Returns true if the passed in line answers a command with the passed
+     *	in verb
+     */
+    private static boolean answers(String line, String verb){
+        int end = 4 + verb.length();
+        return line.startsWith(verb, 4) &&
+               (line.length() == end || line.charAt(end) == ' ');
+    }
+
+    /**
+     * Fail every future still waiting, as no answer will come
+     */
+    private synchronized void fail(Exception e){
+        for (Pending p : pending)
+            if (p.reply != null)
+                p.reply.completeExceptionally(e);
+        pending.clear();
+    }
+
+    /**
+     * First two words of a command
+     */
+    private static String verb(String command){
+        int space = command.indexOf(' ');
+        if (space < 0)
+            return command;
+        int next = command.indexOf(' ', space + 1);
+        return next < 0 ? command : command.substring(0, next);
+    }
+}
@@ -0,0 +1,529 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Stand in for the quagent server, so agents can be run and timed offline
+ *	against rooms loaded by SimWorld. It listens on the same port and
+ *	speaks the same text protocol:
+ *
+ *	do walkby n     CMD do walkby n, then TELL STOPPED d once the bot has
+ *	                walked d units, stopping short at walls
+ *	do turnby n     CMD do turnby n, the bot turning anticlockwise
+ *	do getwhere     CMD do getwhere x y z roll heading yaw velocity
+ *	ask rays n      CMD ask rays n (1 worldspawn x y z) ... with n rays
+ *	                spread evenly from the heading
+ *	ask radius r    CMD ask radius r n (tofu x y z) ...
+ *	do pickup tofu  CMD do pickup tofu, eating the nearest tofu in reach
+ *
+ *	Ray and tofu positions are relative to the bot, and the heading is in
+ *	degrees anticlockwise from the x axis, where the agent reads it. Other
+ *	commands are acknowledged and otherwise ignored. A bot is told DYING
+ *	once it has lived its lifetime, counted in simulated seconds, or once
+ *	the tofu of its mission is gone.
+ *
+ *	Bots connected at the same time share a mission and its tofu, and the
+ *	next bot to connect after they have all gone starts a new one. Time
+ *	runs speed times faster than real time, and with a speed of 0 every
+ *	walk ends as soon as it starts, so missions are only as slow as the
+ *	agent. Bots can also be driven in process through join and handle.
+ */
+class QuagentSim {
+
+    /**
+     * Port of the quagent server
+     */
+    static final int PORT = 33333;
+
+    /**
+     * Speed of walking in units per second, and of turning in degrees per
+     *	second
+     */
+    static final double WALK_SPEED = 200;
+    static final double TURN_SPEED = 360;
+
+    /**
+     * Simulated time taken by every command, in seconds
+     */
+    static final double COMMAND_TIME = 0.01;
+
+    /**
+     * Half the width of a bot, and how close tofu must be to be picked up
+     */
+    static final double HALF_WIDTH = 12;
+    static final double PICKUP_RANGE = 64;
+
+    /**
+     * Thread delivering the events of walks that take time
+     */
+    private static final ScheduledExecutorService clock =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sim-clock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Room being simulated
+     */
+    private final SimWorld world;
+
+    /**
+     * How many times faster than real time the simulation runs, 0 for as
+     *	fast as possible
+     */
+    private final double speed;
+
+    /**
+     * Simulated seconds each bot lives
+     */
+    private final double lifetime;
+
+    /**
+     * Mission of the bots connected now, and how many of them there are
+     */
+    private Mission mission;
+    private int connected;
+
+    /**
+     * Number of bots that have joined, used to hand out starts
+     */
+    private int joined;
+
+    /**
+     * Constructor initializes variables
+     */
+    QuagentSim(SimWorld world, double speed, double lifetime){
+        this.world = world;
+        this.speed = speed;
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * The tofu left to a group of bots
+     */
+    private static class Mission {
+
+        /**
+         * Positions of the tofu not yet eaten
+         */
+        private final ArrayList<double[]> tofu;
+
+        /**
+         * True if the room had any tofu to begin with
+         */
+        private final boolean any;
+
+        /**
+         * Constructor initializes variables
+         */
+        Mission(ArrayList<double[]> tofu){
+            this.tofu = tofu;
+            this.any = !tofu.isEmpty();
+        }
+
+        /**
+         * Returns true once all the tofu is gone
+         */
+        synchronized boolean over(){
+            return any && tofu.isEmpty();
+        }
+
+        /**
+         * Append the tofu closer than radius to x, y, relative to it
+         */
+        synchronized int near(double x, double y, double radius, StringBuilder out){
+            int n = 0;
+            for (double[] t : tofu) {
+                double dx = t[0] - x, dy = t[1] - y;
+                if (dx*dx + dy*dy <= radius*radius) {
+                    out.append(" (tofu ").append(num(dx)).append(' ')
+                       .append(num(dy)).append(" 0)");
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Remove the nearest tofu closer than range to x, y. Returns true if
+         *	there was one.
+         */
+        synchronized boolean eat(double x, double y, double range){
+            int best = -1;
+            double best_d2 = range*range;
+            for (int i = 0; i < tofu.size(); i++) {
+                double dx = tofu.get(i)[0] - x, dy = tofu.get(i)[1] - y;
+                if (dx*dx + dy*dy <= best_d2) {
+                    best = i;
+                    best_d2 = dx*dx + dy*dy;
+                }
+            }
+            if (best < 0)
+                return false;
+            tofu.remove(best);
+            return true;
+        }
+    }
+
+    /**
+     * A simulated quagent, answering the commands of one agent
+     */
+    class Bot {
+
+        /**
+         * Number of the bot, counting from 1
+         */
+        final int number;
+
+        /**
+         * Mission the bot is on
+         */
+        private final Mission mission;
+
+        /**
+         * Where replies and events are written
+         */
+        private final Writer out;
+
+        /**
+         * Position, and heading in degrees
+         */
+        private double x, y, heading;
+
+        /**
+         * Walk in progress, from where to where, how far, and when it
+         *	started and ends on the real clock. stopping is null when the
+         *	bot is standing.
+         */
+        private double from_x, from_y, to_x, to_y, distance;
+        private long walk_start, walk_end;
+        private ScheduledFuture<?> stopping;
+
+        /**
+         * Simulated age in seconds
+         */
+        private double age;
+
+        /**
+         * True once told DYING
+         */
+        private boolean dead;
+
+        /**
+         * Counts kept for the report at the end
+         */
+        private int eaten, commands, scans;
+        private double walked;
+        private final long born = System.nanoTime();
+
+        /**
+         * Scratch point for walks and rays
+         */
+        private final double[] point = new double[2];
+
+        /**
+         * Constructor initializes variables
+         */
+        private Bot(int number, Mission mission, Writer out){
+            this.number = number;
+            this.mission = mission;
+            this.out = out;
+            double[] start = world.start(number - 1);
+            this.x = start[0];
+            this.y = start[1];
+        }
+
+        /**
+         * Carry out one command, writing its reply and any events that
+         *	follow at once. The writer is not flushed.
+         */
+        synchronized void handle(String line) throws IOException {
+            if (dead)
+                return;
+            commands++;
+            age += COMMAND_TIME;
+            String[] words = line.trim().split("\\s+");
+            String verb = words.length > 1 ? words[0]+" "+words[1] : words[0];
+            String arg = words.length > 2 ? words[2] : "";
+            if (verb.equals("do walkby")) {
+                walk(Integer.parseInt(arg), line.trim());
+            }
+            else if (verb.equals("do turnby")) {
+                settle();
+                double degrees = Double.parseDouble(arg);
+                heading = normalize(heading + degrees);
+                age += Math.abs(degrees)/TURN_SPEED;
+                write("CMD "+line.trim());
+            }
+            else if (verb.equals("do getwhere")) {
+                settle();
+                write("CMD do getwhere "+num(x)+" "+num(y)+" 0 0 "+num(heading)+
+                      " 0 "+(stopping != null ? num(WALK_SPEED) : "0"));
+            }
+            else if (verb.equals("ask rays")) {
+                settle();
+                int n = Integer.parseInt(arg);
+                StringBuilder reply = new StringBuilder("CMD ask rays ").append(n);
+                for (int i = 0; i < n; i++) {
+                    world.cast(x, y, heading + 360.0*i/n, point);
+                    reply.append(" (").append(i + 1).append(" worldspawn ")
+                         .append(num(point[0] - x)).append(' ')
+                         .append(num(point[1] - y)).append(" 0)");
+                }
+                scans++;
+                write(reply.toString());
+            }
+            else if (verb.equals("ask radius")) {
+                settle();
+                StringBuilder items = new StringBuilder();
+                int n = mission.near(x, y, Double.parseDouble(arg), items);
+                write("CMD ask radius "+arg+" "+n+items);
+            }
+            else if (verb.equals("do pickup")) {
+                settle();
+                if (arg.equals("tofu") && mission.eat(x, y, PICKUP_RANGE))
+                    eaten++;
+                write("CMD "+line.trim());
+            }
+            else if (verb.equals("do getinventory")) {
+                write("CMD do getinventory "+(eaten > 0 ? "1 (tofu "+eaten+")" : "0"));
+            }
+            else if (verb.equals("do getwellbeing")) {
+                write("CMD do getwellbeing "+num(age)+" "+num(lifetime));
+            }
+            else {
+                write("CMD "+line.trim());
+            }
+            checkAlive();
+        }
+
+        /**
+         * Start walking, ending at once if time is not simulated
+         */
+        private void walk(int units, String command) throws IOException {
+            settle();
+            distance = world.walk(x, y, heading, units, HALF_WIDTH, point);
+            from_x = x;
+            from_y = y;
+            to_x = point[0];
+            to_y = point[1];
+            double seconds = distance/WALK_SPEED;
+            age += seconds;
+            walked += distance;
+            write("CMD "+command);
+            if (speed <= 0) {
+                x = to_x;
+                y = to_y;
+                write("TELL STOPPED "+num(distance));
+                return;
+            }
+            long delay = (long)(seconds/speed*1e9);
+            walk_start = System.nanoTime();
+            walk_end = walk_start + delay;
+            stopping = clock.schedule(new Runnable() {
+                public void run() {
+                    stopped();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * End the walk in progress and tell the agent
+         */
+        private synchronized void stopped(){
+            if (stopping == null || dead)
+                return;
+            stopping = null;
+            x = to_x;
+            y = to_y;
+            try {
+                write("TELL STOPPED "+num(distance));
+                checkAlive();
+                out.flush();
+            }
+            catch (IOException e) { // the agent has gone
+            }
+        }
+
+        /**
+         * Bring the position up to the real clock, ending a walk in progress
+         *	where it has got to if the agent asks for something else
+         */
+        private void settle(){
+            if (stopping == null)
+                return;
+            stopping.cancel(false);
+            stopping = null;
+            double f = Math.min(1.0, (double)(System.nanoTime() - walk_start)/
+                                     Math.max(1, walk_end - walk_start));
+            x = from_x + (to_x - from_x)*f;
+            y = from_y + (to_y - from_y)*f;
+        }
+
+        /**
+         * Tell the agent it is dying once its time is up or the tofu is gone
+         */
+        private void checkAlive() throws IOException {
+            if (!dead && (age >= lifetime || mission.over())) {
+                dead = true;
+                if (stopping != null)
+                    stopping.cancel(false);
+                stopping = null;
+                write("TELL DYING");
+            }
+        }
+
+        /**
+         * Write one line to the agent
+         */
+        private void write(String line) throws IOException {
+            synchronized (out) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+
+        /**
+         * Summary of how the bot did
+         */
+        public synchronized String toString(){
+            return "bot "+number+": "+eaten+" tofu, "+num(age)+" s simulated, "+
+                   Math.round(walked)+" units walked, "+commands+" commands, "+
+                   scans+" scans, "+(System.nanoTime() - born)/1000000+" ms";
+        }
+    }
+
+    /**
+     * Add a bot writing to the passed in writer, on the current mission or
+     *	a new one if no other bot is connected
+     */
+    synchronized Bot join(Writer out){
+        if (connected == 0)
+            mission = new Mission(world.tofu());
+        connected++;
+        return new Bot(++joined, mission, out);
+    }
+
+    /**
+     * Remove a bot that has disconnected
+     */
+    synchronized void leave(Bot bot){
+        connected--;
+    }
+
+    /**
+     * Answer one agent until it disconnects
+     */
+    private void serve(Socket socket){
+        Bot bot = null;
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream()));
+            Writer out = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream()));
+            bot = join(out);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0)
+                    continue;
+                try {
+                    bot.handle(line);
+                }
+                catch (RuntimeException e) { // a command it cannot read
+                    System.out.println("bad command "+line+": "+e);
+                }
+                // Answer a batch of pipelined commands in one write
+                if (!in.ready()) {
+                    synchronized (out) {
+                        out.flush();
+                    }
+                }
+            }
+        }
+        catch (IOException e) { // the agent has gone
+        }
+        finally {
+            if (bot != null) {
+                leave(bot);
+                System.out.println(bot);
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Accept agents on the passed in port forever
+     */
+    void listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("Simulating "+world.width+"x"+world.height+
+                           " tiles on port "+port);
+        while (true) {
+            final Socket socket = server.accept();
+            new Thread(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, "sim-bot").start();
+        }
+    }
+
+    /**
+     * Run the simulator. Usage:
+     *
+     *	java QuagentSim room [-port n] [-tile units] [-speed factor] [-life seconds]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("usage: java QuagentSim room [-port n] "+
+                               "[-tile units] [-speed factor] [-life seconds]");
+            return;
+        }
+        int port = PORT;
+        int tile = 32;
+        double speed = 1;
+        double life = 600;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-port"))
+                port = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-tile"))
+                tile = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-speed"))
+                speed = Double.parseDouble(args[i + 1]);
+            else if (args[i].equals("-life"))
+                life = Double.parseDouble(args[i + 1]);
+            else
+                System.out.println("ignoring "+args[i]);
+        }
+        SimWorld world = SimWorld.load(new File(args[0]), tile);
+        new QuagentSim(world, speed, life).listen(port);
+    }
+
+    /**
+     * Keep angles between -180 and 180 degrees
+     */
+    private static double normalize(double degrees){
+        degrees %= 360;
+        if (degrees > 180)
+            degrees -= 360;
+        else if (degrees <= -180)
+            degrees += 360;
+        return degrees;
+    }
+
+    /**
+     * Format a number as the server does, with a few decimals
+     */
+    static String num(double v){
+        return Double.toString(Math.round(v*1000)/1000.0);
+    }
+}
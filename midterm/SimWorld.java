@@ -0,0 +1,243 @@
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import javax.imageio.ImageIO;
+
+/**
+ * Room for the quagent simulator, a grid of square tiles that are each a
+ *	wall or floor, with tofu and start positions marked on it. Rooms are
+ *	read from text, where # is a wall, T is tofu and S a start, or from
+ *	images, where dark pixels are walls, red ones tofu and green ones
+ *	starts. The first line of text and the top row of an image are the far
+ *	side of the room, and everything outside the room is wall. A room never
+ *	changes once loaded, so any number of bots can share it.
+ */
+class SimWorld {
+
+    /**
+     * Width of each tile in world units
+     */
+    final int tile;
+
+    /**
+     * Size of the room in tiles
+     */
+    final int width, height;
+
+    /**
+     * True for every wall tile, row by row from the near side of the room
+     */
+    private final boolean[] wall;
+
+    /**
+     * World positions of the tofu and of the starts, as x, y pairs
+     */
+    private final ArrayList<double[]> tofu;
+    private final ArrayList<double[]> starts;
+
+    /**
+     * Constructor initializes variables
+     */
+    private SimWorld(int tile, int width, int height){
+        this.tile = tile;
+        this.width = width;
+        this.height = height;
+        this.wall = new boolean[width*height];
+        this.tofu = new ArrayList<double[]>();
+        this.starts = new ArrayList<double[]>();
+    }
+
+    /**
+     * Load a room from the passed in file, as an image if it is one and as
+     *	text otherwise, with tiles of the passed in width
+     */
+    static SimWorld load(File file, int tile) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image != null)
+            return fromImage(image, tile);
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        }
+        finally {
+            in.close();
+        }
+        return fromText(lines, tile);
+    }
+
+    /**
+     * Build a room from lines of text
+     */
+    static SimWorld fromText(List<String> lines, int tile){
+        int width = 0;
+        for (String line : lines)
+            width = Math.max(width, line.length());
+        SimWorld world = new SimWorld(tile, width, lines.size());
+        for (int row = 0; row < lines.size(); row++) {
+            String line = lines.get(row);
+            int ty = lines.size() - 1 - row;
+            for (int tx = 0; tx < line.length(); tx++) {
+                switch (line.charAt(tx)) {
+                    case '#':
+                        world.wall[ty*width + tx] = true;
+                        break;
+                    case 'T':
+                        world.tofu.add(world.center(tx, ty));
+                        break;
+                    case 'S':
+                        world.starts.add(world.center(tx, ty));
+                        break;
+                }
+            }
+        }
+        return world;
+    }
+
+    /**
+     * Build a room from an image, one tile per pixel
+     */
+    static SimWorld fromImage(BufferedImage image, int tile){
+        int width = image.getWidth(), height = image.getHeight();
+        SimWorld world = new SimWorld(tile, width, height);
+        for (int row = 0; row < height; row++) {
+            int ty = height - 1 - row;
+            for (int tx = 0; tx < width; tx++) {
+                int rgb = image.getRGB(tx, row);
+                int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+                if (r > 160 && g < 96 && b < 96)
+                    world.tofu.add(world.center(tx, ty));
+                else if (g > 160 && r < 96 && b < 96)
+                    world.starts.add(world.center(tx, ty));
+                else if (r + g + b < 3*128)
+                    world.wall[ty*width + tx] = true;
+            }
+        }
+        return world;
+    }
+
+    /**
+     * Return a copy of the tofu positions, for a new mission to eat through
+     */
+    ArrayList<double[]> tofu(){
+        ArrayList<double[]> copy = new ArrayList<double[]>(tofu.size());
+        for (double[] t : tofu)
+            copy.add(t.clone());
+        return copy;
+    }
+
+    /**
+     * Return the start of the passed in bot. Bots take the starts in turn,
+     *	and a room without starts starts every bot on its first floor tile.
+     */
+    double[] start(int bot){
+        if (!starts.isEmpty())
+            return starts.get(bot % starts.size()).clone();
+        for (int i = 0; i < wall.length; i++)
+            if (!wall[i])
+                return center(i % width, i / width);
+        throw new IllegalStateException("room has no floor");
+    }
+
+    /**
+     * Returns true if the tile is a wall or outside the room
+     */
+    boolean isWall(int tx, int ty){
+        return tx < 0 || ty < 0 || tx >= width || ty >= height ||
+               wall[ty*width + tx];
+    }
+
+    /**
+     * Returns true if a square of the passed in half width centred on the
+     *	passed in point overlaps a wall
+     */
+    boolean blocked(double x, double y, double half){
+        int tx0 = floor((x - half)/tile), tx1 = floor((x + half)/tile);
+        int ty0 = floor((y - half)/tile), ty1 = floor((y + half)/tile);
+        for (int ty = ty0; ty <= ty1; ty++)
+            for (int tx = tx0; tx <= tx1; tx++)
+                if (isWall(tx, ty))
+                    return true;
+        return false;
+    }
+
+    /**
+     * Move a square of the passed in half width from x, y along the heading,
+     *	in degrees, until it has gone the passed in distance or the next unit
+     *	would run it into a wall. A negative distance walks backwards. The
+     *	end point is put in end, and the distance gone is returned.
+     */
+    double walk(double x, double y, double heading, double distance,
+                double half, double[] end){
+        double dx = Math.cos(Math.toRadians(heading));
+        double dy = Math.sin(Math.toRadians(heading));
+        if (distance < 0) {
+            dx = -dx;
+            dy = -dy;
+            distance = -distance;
+        }
+        double walked = 0;
+        while (walked < distance) {
+            double d = Math.min(walked + 1, distance);
+            if (blocked(x + dx*d, y + dy*d, half))
+                break;
+            walked = d;
+        }
+        end[0] = x + dx*walked;
+        end[1] = y + dy*walked;
+        return walked;
+    }
+
+    /**
+     * Cast a ray from x, y along the passed in angle, in degrees, stepping
+     *	from tile to tile until it enters a wall. The point where it enters
+     *	is put in hit, and the distance to it is returned.
+     */
+    double cast(double x, double y, double angle, double[] hit){
+        double dx = Math.cos(Math.toRadians(angle));
+        double dy = Math.sin(Math.toRadians(angle));
+        int tx = floor(x/tile), ty = floor(y/tile);
+        int step_x = dx > 0 ? 1 : -1;
+        int step_y = dy > 0 ? 1 : -1;
+        // Distance along the ray to the next tile edge on each axis, and
+        //  between successive edges
+        double next_x = dx == 0 ? Double.POSITIVE_INFINITY
+                                : ((dx > 0 ? tx + 1 : tx)*tile - x)/dx;
+        double next_y = dy == 0 ? Double.POSITIVE_INFINITY
+                                : ((dy > 0 ? ty + 1 : ty)*tile - y)/dy;
+        double delta_x = dx == 0 ? Double.POSITIVE_INFINITY : tile/Math.abs(dx);
+        double delta_y = dy == 0 ? Double.POSITIVE_INFINITY : tile/Math.abs(dy);
+        double t = 0;
+        while (!isWall(tx, ty)) {
+            if (next_x < next_y) {
+                t = next_x;
+                next_x += delta_x;
+                tx += step_x;
+            }
+            else {
+                t = next_y;
+                next_y += delta_y;
+                ty += step_y;
+            }
+        }
+        hit[0] = x + dx*t;
+        hit[1] = y + dy*t;
+        return t;
+    }
+
+    /**
+     * World position of the centre of a tile
+     */
+    private double[] center(int tx, int ty){
+        return new double[]{(tx + 0.5)*tile, (ty + 0.5)*tile};
+    }
+
+    /**
+     * Round down to a whole number, also for negative numbers
+     */
+    private static int floor(double v){
+        return (int)Math.floor(v);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Walks the grid cells touched by a straight segment, using the supercover
+ *	version of Bresenham's algorithm: where the segment passes exactly
+ *	through a corner, both cells beside the corner are visited. Each cell
+ *	is handed to a visitor as it is reached, and the walk stops as soon as
+ *	the visitor asks it to, so nothing is allocated and a blocked segment
+ *	costs only the cells up to the first blocking one.
+ */
+class Supercover {
+
+    /**
+     * Receives the cells of a segment in order from its start
+     */
+    interface Visitor {
+
+        /**
+         * Visit the cell at the passed in grid location. Returns false to
+         *	stop the walk.
+         */
+        boolean visit(int gx, int gy);
+    }
+
+    /**
+     * Walk the cells of the segment between two grid locations, visiting
+     *	the starting cell only if include_start is true. Returns true if
+     *	every cell was visited, false if the visitor stopped the walk.
+     */
+    static boolean walk(int x0, int y0, int x1, int y1, boolean include_start,
+                        Visitor visitor){
+        if (include_start && !visitor.visit(x0, y0))
+            return false;
+        int x = x0, y = y0;
+        int dx = Math.abs(x1 - x0), dy = Math.abs(y1 - y0);
+        int xstep = x1 < x0 ? -1 : 1, ystep = y1 < y0 ? -1 : 1;
+
+        // Step along the major axis, swapping x and y for steep segments
+        boolean steep = dy > dx;
+        int major = steep ? dy : dx;
+        int ddmajor = 2*major, ddminor = 2*(steep ? dx : dy);
+
+        // Start in the middle of the square
+        int error = major, errorprev = major;
+        for (int i = 0; i < major; i++) {
+            if (steep) y += ystep; else x += xstep;
+            error += ddminor;
+            if (error > ddmajor) {
+                if (steep) x += xstep; else y += ystep;
+                error -= ddmajor;
+                // Cell beside the corner on the major side
+                if (error + errorprev <= ddmajor) {
+                    if (!(steep ? visitor.visit(x - xstep, y)
+                                : visitor.visit(x, y - ystep)))
+                        return false;
+                }
+                // Cell beside the corner on the minor side
+                if (error + errorprev >= ddmajor) {
+                    if (!(steep ? visitor.visit(x, y - ystep)
+                                : visitor.visit(x - xstep, y)))
+                        return false;
+                }
+            }
+            if (!visitor.visit(x, y))
+                return false;
+            errorprev = error;
+        }
+        return true;
+    }
+}
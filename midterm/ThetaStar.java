@@ -0,0 +1,272 @@
+import java.util.*;
+
+/**
+ * Any angle planner based on Lazy Theta*. Cells are expanded over the grid
+ *	as in A*, but every cell inherits the parent of the cell it was reached
+ *	from, as if it could be seen from there. Line of sight is only checked
+ *	once a cell is expanded, and if it does not hold the cell falls back to
+ *	its best expanded neighbour. The parents form a path of straight
+ *	segments, so no smoothing pass is needed afterwards.
+ *
+ *	A straight segment costs its length plus the extra step cost of every
+ *	cell it crosses, so segments keep clear of walls the same way grid
+ *	paths do. A segment can only cross cells that are known and are not
+ *	walls, the same rule the old post-pass used. Cells are ordered with
+ *	the same Manhattan estimate as a_star. It can overestimate a straight
+ *	segment, but gives up very little path length for far fewer
+ *	expansions, and so far fewer sight checks.
+ */
+class ThetaStar {
+
+    /**
+     * Open list, ordered by f score and then by insertion order
+     */
+    private IndexedHeap open;
+
+    /**
+     * Cells already expanded, one bit per id
+     */
+    private long[] closed;
+
+    /**
+     * Cost from the start along the best known path, and the parent on that
+     *	path, valid only for cells opened by the current search
+     */
+    private int[] g_score;
+    private int[] parent;
+
+    /**
+     * Graph of the current search
+     */
+    private Graph room;
+
+    /**
+     * Visitor reused by every segment cost
+     */
+    private Crossing crossing;
+
+    /**
+     * Number of cells opened in the current search, used to break ties
+     */
+    private int opened;
+
+    /**
+     * Number of cells expanded and lines of sight checked by the last
+     *	search
+     */
+    private int expanded;
+    private int sight_checks;
+
+    /**
+     * Constructor initializes variables
+     */
+    ThetaStar(){
+        this.open = new IndexedHeap(1024);
+        this.closed = new long[16];
+        this.g_score = new int[1024];
+        this.parent = new int[1024];
+        this.crossing = new Crossing();
+    }
+
+    /**
+     * Accessor method for the number of cells expanded by the last search
+     */
+    int expanded(){
+        return expanded;
+    }
+
+    /**
+     * Accessor method for the number of lines of sight checked by the last
+     *	search
+     */
+    int sightChecks(){
+        return sight_checks;
+    }
+
+    /**
+     * Find a path of straight segments from start to goal. The path holds
+     *	the start, the corners and the goal.
+     */
+    Stack<Cell> search(Graph room, Cell start, Cell goal){
+        expanded = 0;
+        sight_checks = 0;
+        if(start.equals(goal)){
+            Stack<Cell> output = new Stack<Cell>();
+            output.push(start);
+            return output;
+        }
+        int start_id = room.idOf(start);
+        if(start_id == CellIndex.NONE){
+            return null;
+        }
+        reset(room);
+
+        g_score[start_id] = 0;
+        parent[start_id] = start_id;
+        open.push(start_id, ((long)distance(start, goal) << 32) | opened++);
+
+        while (!open.isEmpty()){
+            int current = open.pop();
+            if (current != start_id)
+                setVertex(current);
+            Cell c = room.getCell(current);
+            if (c.equals(goal)){
+                return reconstruct_path(current, start_id, start, goal);
+            }
+            closed[current >>> 6] |= 1L << current;
+            expanded++;
+
+            int from = parent[current];
+            Cell p = room.getCell(from);
+            int mask = room.edgeMask(current);
+            for (int dir = 0; dir < 4; dir++){
+                if ((mask & (1 << dir)) == 0)
+                    continue;
+                int neighbor = room.neighborId(current, dir);
+                if (isClosed(neighbor))
+                    continue;
+                Cell n = room.getCell(neighbor);
+                if (n.isWall())
+                    continue;
+
+                // Assume the parent can see the neighbour, checked later
+                int tentative_g_score = g_score[from] + distance(p, n) +
+                                        penalty(neighbor);
+                boolean seen = open.contains(neighbor);
+                if (!seen || tentative_g_score < g_score[neighbor]){
+                    parent[neighbor] = from;
+                    g_score[neighbor] = tentative_g_score;
+                    int f_score = tentative_g_score + n.heuristic(goal);
+                    long order = seen ? open.key(neighbor) & 0xffffffffL : opened++;
+                    open.push(neighbor, ((long)f_score << 32) | order);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Settle the parent of a cell that is about to be expanded. If its
+     *	parent can see it, the true cost of the segment is used, unless
+     *	stepping from an expanded neighbour is cheaper. If not, the cell
+     *	is reached from its best expanded neighbour.
+     */
+    private void setVertex(int id){
+        Cell c = room.getCell(id);
+        int best = Integer.MAX_VALUE;
+        int best_parent = CellIndex.NONE;
+        int from = parent[id];
+        Cell p = room.getCell(from);
+        // A neighbouring parent can always see the cell
+        int cost = p.heuristic(c) == Graph.gridToPoint(1) - Graph.gridToPoint(0) ?
+                   room.stepCost(id) : segmentCost(p, c);
+        if (cost >= 0){
+            best = g_score[from] + cost;
+            best_parent = from;
+        }
+        int mask = room.edgeMask(id);
+        for (int dir = 0; dir < 4; dir++){
+            if ((mask & (1 << dir)) == 0)
+                continue;
+            int neighbor = room.neighborId(id, dir);
+            if (!isClosed(neighbor))
+                continue;
+            int g = g_score[neighbor] + room.stepCost(id);
+            if (g < best){
+                best = g;
+                best_parent = neighbor;
+            }
+        }
+        g_score[id] = best;
+        parent[id] = best_parent;
+    }
+
+    /**
+     * Cost of the straight segment between two cells, or -1 if it crosses
+     *	a cell that is unknown or a wall. Walks every cell the segment
+     *	touches after the first, stopping at the first one that blocks it.
+     */
+    private int segmentCost(Cell c1, Cell c2){
+        sight_checks++;
+        crossing.penalty = 0;
+        if (!Supercover.walk(Graph.pointToGrid(c1.x), Graph.pointToGrid(c1.y),
+                             Graph.pointToGrid(c2.x), Graph.pointToGrid(c2.y),
+                             false, crossing))
+            return -1;
+        return distance(c1, c2) + crossing.penalty;
+    }
+
+    /**
+     * Visitor adding up the extra step cost of the cells a segment crosses,
+     *	stopping at the first cell that is unknown or a wall
+     */
+    private class Crossing implements Supercover.Visitor {
+        int penalty;
+
+        public boolean visit(int gx, int gy){
+            int id = room.idAt(gx, gy);
+            if (id == CellIndex.NONE || room.getCell(id).isWall())
+                return false;
+            penalty += penalty(id);
+            return true;
+        }
+    }
+
+    /**
+     * Extra cost of stepping onto a cell over the length of the step
+     */
+    private int penalty(int id){
+        return room.stepCost(id) - (Graph.gridToPoint(1) - Graph.gridToPoint(0));
+    }
+
+    /**
+     * Straight line distance between two cells, rounded down so that it
+     *	never overestimates
+     */
+    private static int distance(Cell a, Cell b){
+        return (int)a.distance(b);
+    }
+
+    /**
+     * Returns true if the cell with the passed in id has been expanded
+     */
+    private boolean isClosed(int id){
+        return (closed[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Prepare the workspace for a search over the passed in graph
+     */
+    private void reset(Graph room){
+        this.room = room;
+        int V = room.V();
+        open.clear();
+        open.ensureCapacity(V);
+        if (g_score.length < V) {
+            int n = Math.max(V, g_score.length*2);
+            g_score = new int[n];
+            parent = new int[n];
+        }
+        int words = (V + 63) >>> 6;
+        if (closed.length < words)
+            closed = new long[Math.max(words, closed.length*2)];
+        else
+            Arrays.fill(closed, 0, words, 0L);
+        opened = 0;
+    }
+
+    /**
+     * Reconstructs the path of corners from the goal back to the start. The
+     *	start and goal are the cells that were passed in.
+     */
+    private Stack<Cell> reconstruct_path(int current, int start_id,
+                                         Cell start, Cell goal){
+        Stack<Cell> total_path = new Stack<Cell>();
+        total_path.push(goal);
+        while (current != start_id){
+            current = parent[current];
+            total_path.push(current == start_id ? start : room.getCell(current));
+        }
+        return total_path;
+    }
+}
@@ -0,0 +1,601 @@
+import java.util.*;
+
+/**
+ * Dense occupancy grid stored as fixed size tiles of primitive arrays. Each
+ *	cell is a single byte holding its contents and a 4-bit mask of the edges
+ *	to its axis aligned neighbours. Tiles are allocated lazily, so the grid
+ *	can grow in any direction.
+ */
+class TileGrid {
+
+    /**
+     * Tiles are TILE_SIZE cells on a side
+     */
+    static final int TILE_SHIFT = 5;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    static final int TILE_MASK = TILE_SIZE - 1;
+
+    /**
+     * Directions of the four neighbours, used as bit positions in edge masks
+     */
+    static final int WEST = 0;
+    static final int SOUTH = 1;
+    static final int NORTH = 2;
+    static final int EAST = 3;
+
+    /**
+     * Grid offsets for each direction
+     */
+    static final int[] DX = {-1, 0, 0, 1};
+    static final int[] DY = {0, -1, 1, 0};
+
+    /**
+     * Content values, NONE means no cell has been seen at that location
+     */
+    static final int NONE = 0;
+    static final int EMPTY = 1;
+    static final int WALL = 2;
+    static final int TOFU = 3;
+
+    /**
+     * Bit layers kept for every cell. A layer is a bitset with one int per
+     *	tile row, so rows of cells can be tested and cleared in bulk.
+     */
+    static final int UNEXPLORED = 0;
+    static final int FRONTIER = 1;
+    static final int LAYERS = 2;
+
+    /**
+     * Returned by the point queries when no cell matches
+     */
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    /**
+     * Layout of each cell byte
+     */
+    private static final int CONTENT_BITS = 0x3;
+    private static final int EDGE_SHIFT = 2;
+
+    /**
+     * A square block of cells
+     */
+    static class Tile {
+
+        /**
+         * Tile coordinates, the grid coordinates shifted down by TILE_SHIFT
+         */
+        final int tx, ty;
+
+        /**
+         * Content and edge mask of every cell in the tile, row major
+         */
+        final byte[] cells = new byte[TILE_SIZE*TILE_SIZE];
+
+        /**
+         * Bit layers, one int per row with bit x set for column x
+         */
+        final int[][] bits = new int[LAYERS][TILE_SIZE];
+
+        /**
+         * Number of bits set in each layer of the tile
+         */
+        final int[] counts = new int[LAYERS];
+
+        /**
+         * Summed area table of each layer, allocated on first use and rebuilt
+         *	lazily whenever the layer has changed since it was last built
+         */
+        final short[][] sums = new short[LAYERS][];
+
+        /**
+         * True if the layer changed since its summed area table was built
+         */
+        final boolean[] dirty = new boolean[LAYERS];
+
+        /**
+         * Constructor initializes variables
+         */
+        Tile(int tx, int ty){
+            this.tx = tx;
+            this.ty = ty;
+        }
+    }
+
+    /**
+     * Index from tile coordinates to positions in the tile list
+     */
+    private CellIndex tileIndex;
+
+    /**
+     * Every allocated tile
+     */
+    private ArrayList<Tile> tiles;
+
+    /**
+     * Tile found by the last lookup, since lookups along a line or around a
+     *	cell tend to land in the same tile. Readers on several threads may
+     *	overwrite it at any time, so it is read once into a local, checked
+     *	against the wanted coordinates, and never read again to return.
+     */
+    private Tile last;
+
+    /**
+     * Number of bits set in each layer over the whole grid
+     */
+    private int[] counts;
+
+    /**
+     * Constructor initializes variables
+     */
+    TileGrid(){
+        this.tileIndex = new CellIndex(64);
+        this.tiles = new ArrayList<Tile>();
+        this.counts = new int[LAYERS];
+    }
+
+    /**
+     * Convert cell contents into the value stored in the grid
+     */
+    static int encode(Cell.Contents c){
+        return c.ordinal() + 1;
+    }
+
+    /**
+     * Convert a value stored in the grid back into cell contents
+     */
+    static Cell.Contents decode(int content){
+        return content == NONE ? null : Cell.Contents.values()[content - 1];
+    }
+
+    /**
+     * Returns the direction from one grid location to an adjacent one, or -1
+     *	if they are not axis aligned neighbours
+     */
+    static int direction(int gx0, int gy0, int gx1, int gy1){
+        for (int dir = 0; dir < 4; dir++)
+            if (gx0 + DX[dir] == gx1 && gy0 + DY[dir] == gy1)
+                return dir;
+        return -1;
+    }
+
+    /**
+     * Returns the direction pointing the opposite way
+     */
+    static int opposite(int dir){
+        return 3 - dir;
+    }
+
+    /**
+     * Accessor method for the allocated tiles
+     */
+    List<Tile> tiles(){
+        return tiles;
+    }
+
+    /**
+     * Return the tile holding the passed in grid location, allocating it if
+     *	create is true, otherwise returning null when it does not exist
+     */
+    Tile tile(int gx, int gy, boolean create){
+        int tx = gx >> TILE_SHIFT;
+        int ty = gy >> TILE_SHIFT;
+        Tile t = last;
+        if (t != null && t.tx == tx && t.ty == ty)
+            return t;
+        long key = CellIndex.key(tx, ty);
+        int id = tileIndex.get(key);
+        if (id != CellIndex.NONE) {
+            Tile found = tiles.get(id);
+            last = found;
+            return found;
+        }
+        if (!create)
+            return null;
+        t = new Tile(tx, ty);
+        tileIndex.put(key, tiles.size());
+        tiles.add(t);
+        return t;
+    }
+
+    /**
+     * Position of a grid location inside its tile
+     */
+    static int offset(int gx, int gy){
+        return ((gy & TILE_MASK) << TILE_SHIFT) | (gx & TILE_MASK);
+    }
+
+    /**
+     * Return the contents at the passed in grid location
+     */
+    int content(int gx, int gy){
+        Tile t = tile(gx, gy, false);
+        if (t == null)
+            return NONE;
+        return t.cells[offset(gx, gy)] & CONTENT_BITS;
+    }
+
+    /**
+     * Set the contents at the passed in grid location
+     */
+    void setContent(int gx, int gy, int content){
+        Tile t = tile(gx, gy, true);
+        int i = offset(gx, gy);
+        t.cells[i] = (byte)((t.cells[i] & ~CONTENT_BITS) | content);
+    }
+
+    /**
+     * Return the edge mask at the passed in grid location
+     */
+    int edges(int gx, int gy){
+        Tile t = tile(gx, gy, false);
+        if (t == null)
+            return 0;
+        return (t.cells[offset(gx, gy)] >> EDGE_SHIFT) & 0xf;
+    }
+
+    /**
+     * Set or clear the edge leaving the passed in grid location in the
+     *	passed in direction. Returns true if the mask changed.
+     */
+    boolean setEdge(int gx, int gy, int dir, boolean connected){
+        Tile t = tile(gx, gy, true);
+        int i = offset(gx, gy);
+        int bit = 1 << (dir + EDGE_SHIFT);
+        int old = t.cells[i];
+        int cell = connected ? (old | bit) : (old & ~bit);
+        t.cells[i] = (byte)cell;
+        return cell != old;
+    }
+
+    /**
+     * Returns true if any neighbour connected to the passed in grid location
+     *	contains a wall
+     */
+    boolean neighborIsWall(int gx, int gy){
+        int mask = edges(gx, gy);
+        for (int dir = 0; dir < 4; dir++)
+            if ((mask & (1 << dir)) != 0 &&
+                content(gx + DX[dir], gy + DY[dir]) == WALL)
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the number of bits set in the passed in layer
+     */
+    int count(int layer){
+        return counts[layer];
+    }
+
+    /**
+     * Returns true if the bit at the passed in grid location is set
+     */
+    boolean getBit(int layer, int gx, int gy){
+        Tile t = tile(gx, gy, false);
+        if (t == null)
+            return false;
+        return (t.bits[layer][gy & TILE_MASK] & (1 << (gx & TILE_MASK))) != 0;
+    }
+
+    /**
+     * Set or clear the bit at the passed in grid location. Returns true if
+     *	the bit changed.
+     */
+    boolean setBit(int layer, int gx, int gy, boolean value){
+        Tile t = tile(gx, gy, value);
+        if (t == null)
+            return false;
+        int[] rows = t.bits[layer];
+        int row = gy & TILE_MASK;
+        int bit = 1 << (gx & TILE_MASK);
+        if (((rows[row] & bit) != 0) == value)
+            return false;
+        rows[row] ^= bit;
+        t.dirty[layer] = true;
+        int delta = value ? 1 : -1;
+        t.counts[layer] += delta;
+        counts[layer] += delta;
+        return true;
+    }
+
+    /**
+     * Count the bits set in the rectangle between the passed in grid
+     *	locations, inclusive. Tiles that are fully covered contribute their
+     *	running count and partially covered tiles are answered from their
+     *	summed area tables, so the cost depends only on the number of tiles
+     *	the rectangle touches.
+     */
+    int countRect(int layer, int gx0, int gy0, int gx1, int gy1){
+        if (gx0 > gx1 || gy0 > gy1)
+            return 0;
+        int n = 0;
+        for (int ty = gy0 >> TILE_SHIFT; ty <= gy1 >> TILE_SHIFT; ty++) {
+            int y0 = Math.max(gy0 - (ty << TILE_SHIFT), 0);
+            int y1 = Math.min(gy1 - (ty << TILE_SHIFT), TILE_MASK);
+            for (int tx = gx0 >> TILE_SHIFT; tx <= gx1 >> TILE_SHIFT; tx++) {
+                Tile t = tile(tx << TILE_SHIFT, ty << TILE_SHIFT, false);
+                if (t == null || t.counts[layer] == 0)
+                    continue;
+                int x0 = Math.max(gx0 - (tx << TILE_SHIFT), 0);
+                int x1 = Math.min(gx1 - (tx << TILE_SHIFT), TILE_MASK);
+                if (x0 == 0 && y0 == 0 && x1 == TILE_MASK && y1 == TILE_MASK) {
+                    n += t.counts[layer];
+                    continue;
+                }
+                short[] sat = sums(t, layer);
+                int w = TILE_SIZE + 1;
+                n += sat[(y1+1)*w + x1+1] - sat[y0*w + x1+1]
+                   - sat[(y1+1)*w + x0] + sat[y0*w + x0];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Return the summed area tables of a layer for the passed in tile and
+     *	its eight neighbours, row by row from the south west, with null for
+     *	tiles that are missing or have no bits set. Windows around cells of
+     *	the tile can then be counted with window() without further lookups.
+     */
+    short[][] neighbourhood(int layer, Tile t){
+        short[][] around = new short[9][];
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < 3; i++) {
+                Tile n = tile((t.tx+i-1) << TILE_SHIFT,
+                              (t.ty+j-1) << TILE_SHIFT, false);
+                if (n != null && n.counts[layer] > 0)
+                    around[j*3+i] = sums(n, layer);
+            }
+        }
+        return around;
+    }
+
+    /**
+     * Count the bits set in a rectangle given in coordinates local to the
+     *	centre of a neighbourhood, clipping it against each table. The
+     *	rectangle must not reach more than TILE_SIZE past the centre tile.
+     */
+    static int window(short[][] around, int x0, int y0, int x1, int y1){
+        int w = TILE_SIZE + 1;
+        int n = 0;
+        for (int j = 0; j < 3; j++) {
+            int base_y = (j-1) << TILE_SHIFT;
+            int ty0 = Math.max(y0-base_y, 0);
+            int ty1 = Math.min(y1-base_y, TILE_MASK);
+            if (ty0 > ty1)
+                continue;
+            for (int i = 0; i < 3; i++) {
+                short[] sat = around[j*3+i];
+                if (sat == null)
+                    continue;
+                int base_x = (i-1) << TILE_SHIFT;
+                int tx0 = Math.max(x0-base_x, 0);
+                int tx1 = Math.min(x1-base_x, TILE_MASK);
+                if (tx0 > tx1)
+                    continue;
+                n += sat[(ty1+1)*w + tx1+1] - sat[ty0*w + tx1+1]
+                   - sat[(ty1+1)*w + tx0] + sat[ty0*w + tx0];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Return the summed area table of a tile layer, rebuilding it if the
+     *	layer changed. Entry (y+1)*(TILE_SIZE+1)+(x+1) holds the number of
+     *	bits set in rows 0..y and columns 0..x. The rebuild happens on a
+     *	read, so readers on several threads take turns on the tile.
+     */
+    private static short[] sums(Tile t, int layer){
+        synchronized (t) {
+            return build(t, layer);
+        }
+    }
+
+    /**
+     * Rebuild the summed area table of a tile layer if needed
+     */
+    private static short[] build(Tile t, int layer){
+        short[] sat = t.sums[layer];
+        if (sat == null) {
+            sat = new short[(TILE_SIZE+1)*(TILE_SIZE+1)];
+            t.sums[layer] = sat;
+            t.dirty[layer] = true;
+        }
+        if (t.dirty[layer]) {
+            int w = TILE_SIZE + 1;
+            int[] rows = t.bits[layer];
+            for (int y = 0; y < TILE_SIZE; y++) {
+                int run = 0;
+                for (int x = 0; x < TILE_SIZE; x++) {
+                    run += (rows[y] >>> x) & 1;
+                    sat[(y+1)*w + x+1] = (short)(sat[y*w + x+1] + run);
+                }
+            }
+            t.dirty[layer] = false;
+        }
+        return sat;
+    }
+
+    /**
+     * Clear the bits in the rectangle between the passed in grid locations,
+     *	inclusive. Returns the number of bits cleared.
+     */
+    int clearRect(int layer, int gx0, int gy0, int gx1, int gy1){
+        int n = 0;
+        for (int gy = gy0; gy <= gy1; gy++)
+            n += span(layer, gy, gx0, gx1, true);
+        return n;
+    }
+
+    /**
+     * Count the bits set strictly within radius cells of the passed in grid
+     *	location
+     */
+    int countDisc(int layer, int cx, int cy, double radius){
+        return disc(layer, cx, cy, radius, false);
+    }
+
+    /**
+     * Clear the bits strictly within radius cells of the passed in grid
+     *	location. Returns the number of bits cleared.
+     */
+    int clearDisc(int layer, int cx, int cy, double radius){
+        return disc(layer, cx, cy, radius, true);
+    }
+
+    /**
+     * Visit the disc one row span at a time
+     */
+    private int disc(int layer, int cx, int cy, double radius, boolean clear){
+        double r2 = radius*radius;
+        int reach = (int)Math.ceil(radius);
+        int n = 0;
+        for (int dy = -reach; dy <= reach; dy++) {
+            if (dy*dy >= r2)
+                continue;
+            int w = (int)Math.sqrt(r2 - dy*dy);
+            while (w*w + dy*dy >= r2)
+                w--;
+            n += span(layer, cy + dy, cx - w, cx + w, clear);
+        }
+        return n;
+    }
+
+    /**
+     * Count, and optionally clear, the bits set in one row between the
+     *	passed in columns, inclusive
+     */
+    private int span(int layer, int gy, int gx0, int gx1, boolean clear){
+        int n = 0;
+        int row = gy & TILE_MASK;
+        for (int tx = gx0 >> TILE_SHIFT; tx <= gx1 >> TILE_SHIFT; tx++) {
+            Tile t = tile(tx << TILE_SHIFT, gy, false);
+            if (t == null || t.counts[layer] == 0)
+                continue;
+            int lo = Math.max(gx0, tx << TILE_SHIFT) & TILE_MASK;
+            int hi = Math.min(gx1, (tx << TILE_SHIFT) | TILE_MASK) & TILE_MASK;
+            int mask = (-1 >>> (TILE_MASK - hi)) & (-1 << lo);
+            int found = Integer.bitCount(t.bits[layer][row] & mask);
+            if (clear && found > 0) {
+                t.bits[layer][row] &= ~mask;
+                t.dirty[layer] = true;
+                t.counts[layer] -= found;
+                counts[layer] -= found;
+            }
+            n += found;
+        }
+        return n;
+    }
+
+    /**
+     * Find up to k set bits of a layer nearest to the passed in grid
+     *	location, ignoring any whose squared distance is below min2. The
+     *	packed grid coordinates are written to out, nearest first, and the
+     *	number found is returned. Tiles act as buckets: they are visited in
+     *	order of their closest point and the search stops once no remaining
+     *	tile can hold anything nearer than the k found so far.
+     */
+    int nearest(int layer, int gx, int gy, long min2, int k, long[] out){
+        long[] order = new long[tiles.size()];
+        int n = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile t = tiles.get(i);
+            if (t.counts[layer] == 0 || farthest2(t, gx, gy) < min2)
+                continue;
+            order[n++] = (nearest2(t, gx, gy) << 24) | i;
+        }
+        Arrays.sort(order, 0, n);
+
+        long[] best = new long[k];
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            if (found == k && (order[i] >>> 24) > best[k-1])
+                break;
+            Tile t = tiles.get((int)(order[i] & 0xffffff));
+            int[] rows = t.bits[layer];
+            for (int row = 0; row < TILE_SIZE; row++) {
+                for (int bits = rows[row]; bits != 0; bits &= bits-1) {
+                    int x = (t.tx << TILE_SHIFT) | Integer.numberOfTrailingZeros(bits);
+                    int y = (t.ty << TILE_SHIFT) | row;
+                    long d2 = distance2(x, y, gx, gy);
+                    if (d2 < min2 || (found == k && d2 >= best[k-1]))
+                        continue;
+                    // Insertion keeps the k best sorted by distance
+                    int j = found < k ? found++ : k-1;
+                    while (j > 0 && best[j-1] > d2) {
+                        best[j] = best[j-1];
+                        out[j] = out[j-1];
+                        j--;
+                    }
+                    best[j] = d2;
+                    out[j] = CellIndex.key(x, y);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the packed grid coordinates of the set bit of a layer farthest
+     *	from the passed in grid location, or NOT_FOUND if the layer is empty.
+     *	Tiles are visited in order of their farthest point and the search
+     *	stops once no remaining tile can hold anything farther.
+     */
+    long farthest(int layer, int gx, int gy){
+        long[] order = new long[tiles.size()];
+        int n = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile t = tiles.get(i);
+            if (t.counts[layer] > 0)
+                order[n++] = (farthest2(t, gx, gy) << 24) | i;
+        }
+        Arrays.sort(order, 0, n);
+
+        long best = -1;
+        long ret = NOT_FOUND;
+        for (int i = n-1; i >= 0 && (order[i] >>> 24) > best; i--) {
+            Tile t = tiles.get((int)(order[i] & 0xffffff));
+            int[] rows = t.bits[layer];
+            for (int row = 0; row < TILE_SIZE; row++) {
+                for (int bits = rows[row]; bits != 0; bits &= bits-1) {
+                    int x = (t.tx << TILE_SHIFT) | Integer.numberOfTrailingZeros(bits);
+                    int y = (t.ty << TILE_SHIFT) | row;
+                    long d2 = distance2(x, y, gx, gy);
+                    if (d2 > best) {
+                        best = d2;
+                        ret = CellIndex.key(x, y);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Squared distance between two grid locations
+     */
+    static long distance2(int x0, int y0, int x1, int y1){
+        long dx = x1 - x0, dy = y1 - y0;
+        return dx*dx + dy*dy;
+    }
+
+    /**
+     * Squared distance from a grid location to the closest cell of a tile
+     */
+    private static long nearest2(Tile t, int gx, int gy){
+        int x0 = t.tx << TILE_SHIFT, y0 = t.ty << TILE_SHIFT;
+        return distance2(gx, gy, Math.max(x0, Math.min(gx, x0 + TILE_MASK)),
+                                 Math.max(y0, Math.min(gy, y0 + TILE_MASK)));
+    }
+
+    /**
+     * Squared distance from a grid location to the farthest cell of a tile
+     */
+    private static long farthest2(Tile t, int gx, int gy){
+        int x0 = t.tx << TILE_SHIFT, y0 = t.ty << TILE_SHIFT;
+        long dx = Math.max(Math.abs(gx - x0), Math.abs(gx - x0 - TILE_MASK));
+        long dy = Math.max(Math.abs(gy - y0), Math.abs(gy - y0 - TILE_MASK));
+        return dx*dx + dy*dy;
+    }
+}
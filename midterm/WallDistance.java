@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/**
+ * Distance from every cell to the nearest wall, counted in grid steps
+ *	between neighbouring cells of the map and capped at RANGE. Walls are
+ *	never removed and cells never disappear, so distances only ever shrink:
+ *	a new wall or cell just spreads outwards from where it was added,
+ *	touching only the cells whose distance drops.
+ */
+class WallDistance {
+
+    /**
+     * Distances are not tracked beyond this many steps
+     */
+    static final int RANGE = 4;
+
+    /**
+     * Cost added for stepping onto a cell right next to a wall
+     */
+    static final int WALL_PENALTY = 50000;
+
+    /**
+     * Cost added per step closer to a wall than RANGE, for cells that are
+     *	not right next to one
+     */
+    static final int CLEARANCE_COST = 8;
+
+    /**
+     * Extra cost of stepping onto a cell, indexed by its distance
+     */
+    private static final int[] PENALTY = new int[RANGE+1];
+    static {
+        PENALTY[0] = 0;
+        PENALTY[1] = WALL_PENALTY;
+        for (int d = 2; d <= RANGE; d++)
+            PENALTY[d] = CLEARANCE_COST*(RANGE - d);
+    }
+
+    /**
+     * Distance of each cell, indexed by id
+     */
+    private byte[] distance;
+
+    /**
+     * Queue of the last update, holding the cell it started from followed
+     *	by every cell whose distance dropped, in the order they were reached
+     */
+    private int[] queue;
+    private int size;
+
+    /**
+     * Constructor initializes variables
+     */
+    WallDistance(int capacity){
+        this.distance = new byte[Math.max(capacity, 16)];
+        this.queue = new int[64];
+        this.size = 0;
+        Arrays.fill(distance, (byte)RANGE);
+    }
+
+    /**
+     * Return the distance of the cell with the passed in id
+     */
+    int get(int id){
+        return distance[id];
+    }
+
+    /**
+     * Return the extra cost of stepping onto the cell with the passed in id
+     */
+    int penalty(int id){
+        return PENALTY[distance[id]];
+    }
+
+    /**
+     * Number of cells whose distance dropped in the last update
+     */
+    int numChanged(){
+        return size - 1;
+    }
+
+    /**
+     * Return the id of the i-th cell whose distance dropped in the last
+     *	update
+     */
+    int changed(int i){
+        return queue[i+1];
+    }
+
+    /**
+     * Take a newly added cell into account. Its distance is one more than
+     *	that of its nearest neighbour, or zero if it is a wall, and then it
+     *	is spread to the cells around it.
+     */
+    void insert(Graph room, int id, boolean wall){
+        ensureCapacity(id+1);
+        int d = RANGE;
+        if (wall) {
+            d = 0;
+        }
+        else {
+            for (int dir = 0; dir < 4; dir++) {
+                int n = room.neighborId(id, dir);
+                if (n != CellIndex.NONE)
+                    d = Math.min(d, distance[n]+1);
+            }
+        }
+        distance[id] = (byte)d;
+        spread(room, id);
+    }
+
+    /**
+     * Take a cell that turned into a wall into account
+     */
+    void markWall(Graph room, int id){
+        distance[id] = 0;
+        spread(room, id);
+    }
+
+    /**
+     * Lower the distances around a cell whose distance just dropped, one
+     *	ring of cells at a time
+     */
+    private void spread(Graph room, int id){
+        size = 0;
+        int head = 0;
+        push(id);
+        while (head < size) {
+            int u = queue[head++];
+            int d = distance[u] + 1;
+            if (d >= RANGE)
+                continue;
+            for (int dir = 0; dir < 4; dir++) {
+                int n = room.neighborId(u, dir);
+                if (n != CellIndex.NONE && distance[n] > d) {
+                    distance[n] = (byte)d;
+                    push(n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a cell to the queue
+     */
+    private void push(int id){
+        if (size == queue.length)
+            queue = Arrays.copyOf(queue, size*2);
+        queue[size++] = id;
+    }
+
+    /**
+     * Make room for ids below the passed in capacity. New cells start out
+     *	as far from walls as is tracked.
+     */
+    private void ensureCapacity(int capacity){
+        if (distance.length >= capacity)
+            return;
+        int old = distance.length;
+        distance = Arrays.copyOf(distance, Math.max(capacity, old*2));
+        Arrays.fill(distance, old, distance.length, (byte)RANGE);
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Wakes up a quagent that has stopped responding. Kicking the watchdog
+ *	only moves its deadline on, so it costs no more than reading the
+ *	clock. Every watchdog is checked on one long lived thread, which looks
+ *	again once the deadline it last saw is due and fires if no kick has
+ *	moved it since.
+ *
+ *	Firing runs the next of a ladder of recovery actions, the first after
+ *	the timeout, the second if another timeout passes without a kick, and
+ *	so on, repeating the last one for as long as the quagent stays quiet.
+ *	A kick starts the ladder over. How often each action has fired is
+ *	counted.
+ */
+class Watchdog {
+
+    /**
+     * Something to do to wake up the quagent
+     */
+    interface Action {
+        void recover() throws Exception;
+    }
+
+    /**
+     * The thread checking every watchdog
+     */
+    private static final ScheduledExecutorService clock =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Time in nanoseconds without a kick before firing
+     */
+    private final long timeout;
+
+    /**
+     * Recovery actions, in the order they are tried
+     */
+    private final Action[] actions;
+
+    /**
+     * Number of times each action has fired
+     */
+    private final AtomicLongArray fired;
+
+    /**
+     * Number of actions that failed
+     */
+    private final AtomicLong failed;
+
+    /**
+     * Time on the monotonic clock after which the watchdog fires
+     */
+    private volatile long deadline;
+
+    /**
+     * Index of the next action to fire, reset to 0 by a kick
+     */
+    private final AtomicInteger stage;
+
+    /**
+     * Pending check of the deadline
+     */
+    private ScheduledFuture<?> check;
+
+    /**
+     * True once the watchdog has stopped
+     */
+    private boolean stopped;
+
+    /**
+     * Constructor initializes variables and starts watching. The timeout is
+     *	in milliseconds.
+     */
+    Watchdog(long timeout, Action... actions){
+        if (actions.length == 0)
+            throw new IllegalArgumentException("no recovery actions");
+        this.timeout = timeout*1000000L;
+        this.actions = actions.clone();
+        this.fired = new AtomicLongArray(actions.length);
+        this.failed = new AtomicLong();
+        this.stage = new AtomicInteger();
+        this.deadline = System.nanoTime() + this.timeout;
+        schedule(this.timeout);
+    }
+
+    /**
+     * The quagent is awake, so move the deadline on and start the ladder
+     *	over
+     */
+    void kick(){
+        deadline = System.nanoTime() + timeout;
+        if (stage.get() != 0)
+            stage.set(0);
+    }
+
+    /**
+     * Stop watching
+     */
+    synchronized void stop(){
+        stopped = true;
+        if (check != null)
+            check.cancel(false);
+    }
+
+    /**
+     * Accessor method for the number of times the watchdog has fired
+     */
+    long fired(){
+        long total = 0;
+        for (int i = 0; i < fired.length(); i++)
+            total += fired.get(i);
+        return total;
+    }
+
+    /**
+     * Accessor method for the number of times the action at the passed in
+     *	index has fired
+     */
+    long fired(int action){
+        return fired.get(action);
+    }
+
+    /**
+     * Accessor method for the number of actions that failed
+     */
+    long failed(){
+        return failed.get();
+    }
+
+    /**
+     * Counts of how often each action has fired, for printing
+     */
+    public String toString(){
+        StringBuilder counts = new StringBuilder("watchdog fired ");
+        counts.append(fired()).append(" times (");
+        for (int i = 0; i < actions.length; i++)
+            counts.append(i == 0 ? "" : ", ").append(fired(i));
+        return counts.append("), ").append(failed()).append(" failed").toString();
+    }
+
+    /**
+     * Check the deadline again after the passed in delay, in nanoseconds,
+     *	unless stopped
+     */
+    private synchronized void schedule(long delay){
+        if (stopped)
+            return;
+        check = clock.schedule(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Fire if the deadline has passed, and look again when the next one is
+     *	due
+     */
+    private void check(){
+        synchronized (this) {
+            if (stopped)
+                return;
+        }
+        long left = deadline - System.nanoTime();
+        if (left > 0){
+            schedule(left);
+            return;
+        }
+        // Move up the ladder unless a kick has reset it meanwhile. A kick
+        //  at the bottom of the ladder leaves it alone, so the deadline is
+        //  looked at again, and the step taken back if it has moved on.
+        int i = stage.get();
+        int up = Math.min(i + 1, actions.length - 1);
+        if (!stage.compareAndSet(i, up)){
+            schedule(0);
+            return;
+        }
+        left = deadline - System.nanoTime();
+        if (left > 0){
+            stage.compareAndSet(up, i);
+            schedule(left);
+            return;
+        }
+        deadline = System.nanoTime() + timeout;
+        fired.incrementAndGet(i);
+        try {
+            actions[i].recover();
+        }
+        catch (QDiedException e) { // nothing left to wake up
+            stop();
+        }
+        catch (Exception e) {
+            failed.incrementAndGet();
+            System.out.println("watchdog: "+e);
+        }
+        schedule(Math.max(0, deadline - System.nanoTime()));
+    }
+}